@@ -0,0 +1,140 @@
+package gedcomj;
+
+import java.util.*;
+
+/**
+ * A problem found while parsing. Warnings are always reported this way if a {@link Sink} is set,
+ * and errors are too when the {@link GEDCOM#OPTION_RECOVER} option is set, rather than stopping the parse.
+ * <pre>
+ * Diagnostic.Collector collector = new Diagnostic.Collector(1000);
+ * gedcom.setDiagnosticSink(collector);
+ * gedcom.getOptions().put(GEDCOM.OPTION_RECOVER, "true");
+ * gedcom.read(path);
+ * for (Diagnostic d : collector.getDiagnostics()) {
+ *     System.out.println(d);
+ * }
+ * </pre>
+ */
+public class Diagnostic {
+
+    public enum Kind {
+        /** A problem that doesn't lose any data */
+        Warning,
+        /** A problem that would stop the parse without {@link GEDCOM#OPTION_RECOVER}. The line, or part of it, is skipped */
+        Error
+    }
+
+    /**
+     * Something that receives Diagnostics
+     */
+    public interface Sink {
+        /**
+         * Called once for each Diagnostic, in the order they are found
+         */
+        void add(Diagnostic diagnostic);
+    }
+
+    /**
+     * A Sink which collects up to a maximum number of Diagnostics, and counts the rest.
+     * This class is thread-safe
+     */
+    public static class Collector implements Sink {
+        private final int max;
+        private final List<Diagnostic> list = new ArrayList<Diagnostic>();
+        private int count;
+
+        /**
+         * @param max the maximum number of Diagnostics to keep
+         */
+        public Collector(int max) {
+            this.max = max;
+        }
+
+        @Override public synchronized void add(Diagnostic diagnostic) {
+            if (list.size() < max) {
+                list.add(diagnostic);
+            }
+            count++;
+        }
+
+        /**
+         * Return a copy of the list of Diagnostics kept
+         */
+        public synchronized List<Diagnostic> getDiagnostics() {
+            return new ArrayList<Diagnostic>(list);
+        }
+
+        /**
+         * Return the total number of Diagnostics received, including those not kept
+         */
+        public synchronized int getCount() {
+            return count;
+        }
+    }
+
+    private final Kind kind;
+    private final String message;
+    private final int line, c;
+    private final long offset;
+
+    Diagnostic(Kind kind, String message, int line, long offset, int c) {
+        this.kind = kind;
+        this.message = message;
+        this.line = line;
+        this.offset = offset;
+        this.c = c;
+    }
+
+    /**
+     * Return the kind of problem
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Return the description of the problem, eg "Expected level"
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Return the line number of the problem, as used in the messages thrown by the parser
+     */
+    public int getLineNumber() {
+        return line;
+    }
+
+    /**
+     * Return the byte offset of the problem, or of the level number that begins the line it is on, or -1 if not known
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Return the byte or character that caused the problem, -1 if it was the end of the file, or -2 if not applicable
+     */
+    public int getChar() {
+        return c;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(kind == Kind.Error ? "ERROR: " : "WARNING: ");
+        sb.append(message);
+        if (c >= 0x20 && c <= 0x7e) {
+            sb.append(" (got '" + ((char)c) + "')");
+        } else if (c == -1) {
+            sb.append(" (got EOF)");
+        } else if (c >= 0) {
+            sb.append(" (got 0x" + Integer.toHexString(c) + ")");
+        }
+        if (line >= 0) {
+            sb.append(" (line " + line + ")");
+        }
+        return sb.toString();
+    }
+
+}
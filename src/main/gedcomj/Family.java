@@ -13,6 +13,9 @@ public class Family extends Record {
     }
 
     @Override protected void notifyRemoved() {
+        if (!isLoaded()) {
+            return;     // if not loaded, no Person can have read the connections from this Family
+        }
         for (Record r : getRecords()) {
             r = r.dereference();
             if (r instanceof Person) {
@@ -22,6 +25,9 @@ public class Family extends Record {
     }
 
     @Override protected void notifyAdded() {
+        if (!isLoaded()) {
+            return;     // if not loaded, no Person can have read the connections from this Family
+        }
         for (Record r : getRecords()) {
             r = r.dereference();
             if (r instanceof Person) {
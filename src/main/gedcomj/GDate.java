@@ -50,6 +50,16 @@ public class GDate extends Record {
         parseValue();
     }
 
+    /**
+     * Set the value along with the dates already parsed from it, as read from a snapshot
+     */
+    void setValue(String value, Qualifier qualifier, Date d0, Date d1) {
+        super.setValue(value);
+        this.d0 = d0;
+        this.d1 = d1;
+        this.qualifier = qualifier;
+    }
+
     private void parseValue() {
         Date d0 = null, d1 = null;
         Qualifier qualifier = null;
@@ -2,7 +2,12 @@ package gedcomj;
 
 import java.io.*;
 import java.util.*;
-import java.nio.charset.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 
 /**
  * Represents a GEDCOM file
@@ -24,9 +29,54 @@ public class GEDCOM {
      */
     public static final String OPTION_DEFAULT_CHARSET = "charset";
 
+    /**
+     * An option to parse the level-0 records in parallel when reading from a Path or FileChannel,
+     * and to encode them in parallel when writing. The value is the number of threads to use,
+     * or any other value to use the common ForkJoinPool
+     */
+    public static final String OPTION_PARALLEL = "parallel";
+
+    /**
+     * An option to reuse the same String for repeated short values, such as "M" for SEX or
+     * a common PLAC. The value is the maximum length of value to reuse, or any other value for 32
+     */
+    public static final String OPTION_INTERN_VALUES = "intern-values";
+
+    /**
+     * An option to read only the level-0 records when reading from a Path or FileChannel, leaving
+     * the file mapped into memory. The value and descendants of each record are parsed the first
+     * time it is accessed, so memory use depends on the records used, rather than the size of the file.
+     * Errors in the descendants of a level-0 record are not reported until it is accessed, when
+     * an IllegalStateException is thrown. This also applies to a {@link #writeSnapshot snapshot},
+     * so several processes reading the same snapshot share its pages in the operating system's cache.
+     */
+    public static final String OPTION_LAZY = "lazy";
+
+    /**
+     * An option to use an index file when reading from a Path, which implies {@link #OPTION_LAZY}.
+     * The index is the filename with ".idx" added, unless {@link #OPTION_INDEX_PATH} is set.
+     * If the index exists and matches the file the level-0 records are read from it rather than
+     * the file, otherwise the file is read and the index written. See {@link GedcomIndex}
+     */
+    public static final String OPTION_INDEX = "index";
+
+    /**
+     * An option to set the filename of the index used with {@link #OPTION_INDEX}
+     */
+    public static final String OPTION_INDEX_PATH = "index-path";
+
+    /**
+     * An option to recover from errors while parsing, rather than stopping at the first one.
+     * Each error is reported to the {@link #setDiagnosticSink diagnostic sink} and the line
+     * is skipped. A banned character in a value, or one that's invalid in the charset, drops
+     * just that character; a control character in a value ends it there, and the rest of the
+     * line is skipped. Lines at an invalid level are skipped along with their descendants.
+     */
+    public static final String OPTION_RECOVER = "recover";
+
+    private static final int MINCHUNK = 1<<20, MAXCHUNK = 1<<28, MAPSIZE = 1<<30, MINBATCH = 256;
 
 
-    private static final int CS_UTF8 = 0, CS_ASCII = 1, CS_ANSEL = 2;
 
     private final List<Record> records = new RecordList(this, null) {
         @Override protected void notifyRemoved(Record r) {
@@ -47,6 +97,17 @@ public class GEDCOM {
 
     private final Map<String,String> options = new HashMap<String,String>();
     private final Map<String,Record> idtable = new HashMap<String,Record>();
+    private int bulk;                   // nesting depth of beginBulk/endBulk
+    private long interned;
+    private GedcomCursor lazycursor;
+    private Snapshot lazysnapshot;
+    private Diagnostic.Sink sink;
+    private ParseStatistics stats;
+    private Gedzip gedzip;
+    private Path sourcepath;            // if not null, the file unchanged level-0 records can be copied from
+    private long sourcesize;
+    private FileTime sourcetime;
+    private int sourcecharset, sourceversion;
 
     public GEDCOM() {
     }
@@ -58,347 +119,1128 @@ public class GEDCOM {
         return options;
     }
 
+    /**
+     * Set the Sink to send warnings to while reading, and errors if the {@link #OPTION_RECOVER}
+     * option is set. If not set, they are printed to System.out
+     * @param sink the sink, or null
+     */
+    public void setDiagnosticSink(Diagnostic.Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Set the ParseStatistics to collect statistics in while reading. It is reset at the start of each read.
+     * @param stats the statistics, or null to collect none
+     */
+    public void setStatistics(ParseStatistics stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Return an estimate of the number of bytes of memory saved during the last read
+     * by reusing the Strings for repeated tags and, if {@link #OPTION_INTERN_VALUES} is set, values
+     */
+    public long getInternedBytes() {
+        return interned;
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        boolean first = true;
-        for (Record r : records) {
-            if (!first) {
-                sb.append(",");
-            }
-            first = false;
-            sb.append(r);
-            sb.append('\n');
+        try {
+            writeJSON(sb, false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // can't happen
         }
-        sb.append("]");
         return sb.toString();
     }
 
+    /**
+     * Write the GEDCOM as JSON, in the same form as {@link #toString} but without building it
+     * in memory first: an array of level-0 records, each an object with "tag", "id", "value",
+     * "idref" and "records" keys. The compact form has each level-0 record on its own line.
+     * @param out the Appendable to write to
+     * @param pretty whether to write it indented over several lines, rather than compact
+     */
+    public void writeJSON(Appendable out, boolean pretty) throws IOException {
+        out.append('[');
+        for (int i=0;i<records.size();i++) {
+            if (pretty) {
+                out.append(i == 0 ? "\n  " : ",\n  ");
+                records.get(i).writeJSON(out, 1);
+            } else {
+                if (i > 0) {
+                    out.append(',');
+                }
+                records.get(i).writeJSON(out, -1);
+                out.append('\n');
+            }
+        }
+        out.append(pretty ? "\n]\n" : "]");
+    }
+
+    /**
+     * Write the GEDCOM as UTF-8 encoded JSON, as for {@link #writeJSON(Appendable,boolean)}.
+     * The OutputStream is flushed but not closed
+     * @param out the OutputStream to write to
+     * @param pretty whether to write it indented over several lines, rather than compact
+     */
+    public void writeJSON(OutputStream out, boolean pretty) throws IOException {
+        JSONBuffer buf = new JSONBuffer(new OutputStreamWriter(out, "UTF-8"));
+        writeJSON(buf, pretty);
+        buf.flush();
+    }
+
+    /**
+     * Write the GEDCOM as JSON Lines: each level-0 record, with its descendants, as a compact
+     * JSON object on a line of its own, in the same form as {@link Record#toString}. Unlike a
+     * JSON array the output can be split at any newline, appended to, or processed with line-based
+     * tools, and is read by {@link #read} in parallel if {@link #OPTION_PARALLEL} is set.
+     * @param out the Appendable to write to
+     */
+    public void writeJSONLines(Appendable out) throws IOException {
+        for (int i=0;i<records.size();i++) {
+            records.get(i).writeJSON(out, -1);
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Write the GEDCOM as UTF-8 encoded JSON Lines, as for {@link #writeJSONLines(Appendable)}.
+     * The OutputStream is flushed but not closed
+     * @param out the OutputStream to write to
+     */
+    public void writeJSONLines(OutputStream out) throws IOException {
+        JSONBuffer buf = new JSONBuffer(new OutputStreamWriter(out, "UTF-8"));
+        writeJSONLines(buf);
+        buf.flush();
+    }
+
+    /**
+     * A buffer of chars for writing to a Writer, which unlike a BufferedWriter
+     * doesn't lock or create a String for each append
+     */
+    private static final class JSONBuffer implements Appendable {
+        private final Writer out;
+        private final char[] buf = new char[65536];
+        private int pos;
+
+        JSONBuffer(Writer out) {
+            this.out = out;
+        }
+
+        @Override public Appendable append(char c) throws IOException {
+            if (pos == buf.length) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+            buf[pos++] = c;
+            return this;
+        }
+
+        @Override public Appendable append(CharSequence s) throws IOException {
+            return append(s, 0, s.length());
+        }
+
+        @Override public Appendable append(CharSequence s, int start, int end) throws IOException {
+            while (start < end) {
+                if (pos == buf.length) {
+                    out.write(buf, 0, pos);
+                    pos = 0;
+                }
+                int n = Math.min(end - start, buf.length - pos);
+                if (s instanceof String) {
+                    ((String)s).getChars(start, start + n, buf, pos);
+                } else {
+                    for (int i=0;i<n;i++) {
+                        buf[pos + i] = s.charAt(start + i);
+                    }
+                }
+                pos += n;
+                start += n;
+            }
+            return this;
+        }
+
+        void flush() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+            out.flush();
+        }
+    }
+
     /**
      * Load a GEDCOM from the specified file. Any records that
-     * alread exist are removed;
+     * alread exist are removed; gzip-compressed input is uncompressed
      * @param in the InputStream
      */
     public void read(InputStream in) throws IOException {
+        if (stats != null) {
+            stats.start();
+        }
+        beginBulk();
+        Throwable failure = null;
+        try {
+            gedzip = null;
+            sourcepath = null;
+            readStream(in);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            endBulk(failure);
+            if (stats != null) {
+                stats.end();
+            }
+        }
+    }
+
+    private void readStream(InputStream in) throws IOException {
+        in = new BufferedInputStream(in);
+        byte[] head = new byte[4];
+        int len = head(in, head);
+        if (Gedzip.isGzip(head, len)) {
+            in = new BufferedInputStream(new GZIPInputStream(in));
+            len = head(in, head);
+        }
+        int json = jsonType(head, len);
+        if (json != 0) {
+            readJSON(in, json == '{');
+        } else if (Snapshot.isSnapshot(head, len)) {
+            readSnapshotRecords(in);
+        } else {
+            read(new GedcomCursor(in));
+        }
+    }
+
+    /**
+     * Read the first bytes of a BufferedInputStream without consuming them
+     */
+    private static int head(InputStream in, byte[] head) throws IOException {
+        in.mark(head.length);
+        int len = 0, n;
+        while (len < head.length && (n = in.read(head, len, head.length - len)) > 0) {
+            len += n;
+        }
+        in.reset();
+        return len;
+    }
+
+    /**
+     * Load a GEDCOM from a GEDZIP file, as defined by GEDCOM 7: a zip archive containing the
+     * dataset as "gedcom.ged" along with any media files. The dataset is parsed directly from
+     * the archive, and the media files can be read with {@link Multimedia#openFile} or
+     * {@link Multimedia#mapFile}. {@link #read(Path)} will call this method if the file is a zip archive.
+     * Any records that already exist are removed;
+     * @param path the GEDZIP file to read
+     */
+    public void readGedzip(Path path) throws IOException {
+        Gedzip gedzip = new Gedzip(path);
+        InputStream in = gedzip.open(Gedzip.DATASET);
+        if (in == null) {
+            throw new ZipException("No \"" + Gedzip.DATASET + "\" in \"" + path + "\"");
+        }
+        try {
+            read(in);
+        } finally {
+            in.close();
+        }
+        this.gedzip = gedzip;
+    }
+
+    /**
+     * Write the GEDCOM to a GEDZIP file, as defined by GEDCOM 7. If this GEDCOM was read from a
+     * GEDZIP file, any of its media files referenced by the FILE records of level-0 OBJE records
+     * are copied into the new file. The file is written to a temporary file first then moved into
+     * place, so it can replace the file this GEDCOM was read from.
+     * @param path the GEDZIP file to write
+     */
+    public void writeGedzip(Path path) throws IOException {
+        Path tmp = createTempFile(path);
+        boolean done = false;
+        try {
+            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+            try {
+                out.putNextEntry(new ZipEntry(Gedzip.DATASET));
+                write(out);
+                out.closeEntry();
+                if (gedzip != null) {
+                    Set<String> copied = new HashSet<String>();
+                    copied.add(Gedzip.DATASET);
+                    for (Record r : getRecords()) {
+                        if (r instanceof Multimedia) {
+                            for (String file : ((Multimedia)r).getFiles()) {
+                                String name = Gedzip.getEntryName(file);
+                                if (copied.add(name)) {
+                                    gedzip.copy(name, out);
+                                }
+                            }
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        if (gedzip != null && Files.isSameFile(path, gedzip.getPath())) {
+            gedzip = new Gedzip(path);      // the entries have moved
+        }
+    }
+
+    /**
+     * Write the GEDCOM as a binary snapshot, which can be read back by {@link #readSnapshot} or
+     * {@link #read} much faster than GEDCOM or JSON. Tags, ids and repeated values are written once
+     * to a string table, and DATE records are written with the dates already parsed from them,
+     * so loading does no tokenizing, charset decoding or date parsing. It is intended for
+     * reloading a tree that has already been read and verified; the format may change
+     * between versions of this package, so it isn't suitable for archiving. If read from
+     * a Path or FileChannel with {@link #OPTION_LAZY} set, only the level-0 records are read.
+     * The OutputStream is flushed but not closed
+     * @param out the OutputStream to write to
+     */
+    public void writeSnapshot(OutputStream out) throws IOException {
+        new Snapshot().write(records, out);
+    }
+
+    /**
+     * Load a GEDCOM from a snapshot written by {@link #writeSnapshot}.
+     * Any records that already exist are removed;
+     * @param in the InputStream
+     */
+    public void readSnapshot(InputStream in) throws IOException {
+        if (stats != null) {
+            stats.start();
+        }
+        beginBulk();
+        Throwable failure = null;
+        try {
+            gedzip = null;
+            sourcepath = null;
+            readSnapshotRecords(in);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            endBulk(failure);
+            if (stats != null) {
+                stats.end();
+            }
+        }
+    }
+
+    private void readSnapshotRecords(InputStream in) throws IOException {
         getRecords().clear();
         idtable.clear();
-        in = new BufferedInputStream(in);
-        int charset = CS_UTF8;
-        if ("ASCII".equalsIgnoreCase(options.get(OPTION_DEFAULT_CHARSET))) {
-            charset = CS_ASCII;
-        } else if ("ANSEL".equalsIgnoreCase(options.get(OPTION_DEFAULT_CHARSET))) {
-            charset = CS_ANSEL;
-        }
-        int majorversion = 5;
-        int line = 0;
-        boolean flag_whitespace = options.containsKey(OPTION_TOLERATE_WHITESPCE);
-        boolean flag_insertnewline = false;
-        StringBuilder sb = new StringBuilder();
-        int c = in.read();
-        if (c == 0xEF) {
-            if (in.read() != 0xBB && in.read() != 0xBF) {
-                throw new IOException("Invalid initial bytes, not a BOM or level");
+        interned = 0;
+        new Snapshot().read(this, in, records);
+    }
+
+    /**
+     * Return the GEDZIP file this GEDCOM was read from, or null
+     */
+    Gedzip getGedzip() {
+        return gedzip;
+    }
+
+    /**
+     * Load a GEDCOM from the specified file, which will be memory-mapped
+     * while it is read. Any records that alread exist are removed;
+     * If {@link #OPTION_INDEX} is set, the index is used or written.
+     * If the file is a GEDZIP archive it is read with {@link #readGedzip},
+     * and if it is gzip-compressed it is uncompressed as it is read.
+     * @param path the file to read
+     */
+    public void read(Path path) throws IOException {
+        if (stats != null) {
+            stats.start();
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        beginBulk();
+        Throwable failure = null;
+        try {
+            gedzip = null;
+            sourcepath = null;
+            sourcecharset = -1;
+            byte[] head = new byte[4];
+            int len = head(channel, head);
+            boolean plain = !Gedzip.isZip(head, len) && !Gedzip.isGzip(head, len) && jsonType(head, len) == 0 && !Snapshot.isSnapshot(head, len);
+            if (Gedzip.isZip(head, len)) {
+                channel.close();
+                readGedzip(path);
+            } else if (options.containsKey(OPTION_INDEX) && !options.containsKey(OPTION_NL_AFTER_NOTE) && jsonType(head, len) == 0 && !Gedzip.isGzip(head, len) && !Snapshot.isSnapshot(head, len)) {
+                String v = options.get(OPTION_INDEX_PATH);
+                Path indexpath = v == null || v.isEmpty() ? path.resolveSibling(path.getFileName() + ".idx") : Paths.get(v);
+                GedcomIndex index = GedcomIndex.read(path, channel, indexpath, options);
+                if (index != null) {
+                    readIndex(channel, index);
+                } else {
+                    index = new GedcomIndex();
+                    index.start(path, channel, options);
+                    readLazy(channel, index);
+                    try {
+                        index.write(indexpath);
+                    } catch (IOException e) {
+                        // The index is only a cache, so the read has still succeeded
+                        report(new Diagnostic(Diagnostic.Kind.Warning, "Couldn't write index \"" + indexpath + "\": " + e, -1, -1, -2));
+                    }
+                }
             } else {
-                c = in.read();
+                readChannel(channel);
             }
+            // Unchanged records can be copied from the file if it's UTF-8 and was read exactly as it is
+            if (plain && sourcecharset == GedcomCursor.CS_UTF8 && !options.containsKey(OPTION_NL_AFTER_NOTE) && !options.containsKey(OPTION_RECOVER)) {
+                sourcesize = channel.size();
+                sourcetime = Files.getLastModifiedTime(path);
+                sourcepath = path;
+            }
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            channel.close();
+            endBulk(failure);
+            if (stats != null) {
+                stats.end();
+            }
+        }
+    }
+
+    /**
+     * Load a GEDCOM from the specified FileChannel, starting at its current position.
+     * The file will be memory-mapped while it is read, and is not closed by this method.
+     * Any records that alread exist are removed;
+     * @param channel the FileChannel to read
+     */
+    public void read(FileChannel channel) throws IOException {
+        if (stats != null) {
+            stats.start();
         }
-        if (c == '[') {
-            // Read JSON format
-            sb.append('[');
-            Reader r = new InputStreamReader(in, "UTF-8");
-            while ((c = r.read()) >= 0) {
-                sb.append((char)c);
+        beginBulk();
+        Throwable failure = null;
+        try {
+            gedzip = null;
+            sourcepath = null;
+            readChannel(channel);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            endBulk(failure);
+            if (stats != null) {
+                stats.end();
             }
-            @SuppressWarnings("unchecked") List<Map<String,Object>> l = (List<Map<String,Object>>)Stringify.parse(sb.toString());
-            for (Map<String,Object> m : l) {
-                records.add(jsonToRecord(m));
+        }
+    }
+
+    private void readChannel(FileChannel channel) throws IOException {
+        byte[] head = new byte[4];
+        int len = head(channel, head);
+        int json = jsonType(head, len);
+        if (json == '{' && options.containsKey(OPTION_PARALLEL)) {
+            readJSONParallel(channel);
+        } else if (json != 0) {
+            readJSON(Channels.newInputStream(channel), json == '{');
+        } else if (Gedzip.isGzip(head, len)) {
+            readStream(Channels.newInputStream(channel));
+        } else if (Snapshot.isSnapshot(head, len)) {
+            getRecords().clear();
+            idtable.clear();
+            interned = 0;
+            if (options.containsKey(OPTION_LAZY)) {
+                lazysnapshot = new Snapshot();
+                lazysnapshot.read(this, channel, map(channel), records);
+            } else {
+                new Snapshot().read(this, channel, null, records);
             }
-            return;
+        } else if (options.containsKey(OPTION_LAZY) && !options.containsKey(OPTION_NL_AFTER_NOTE)) {
+            readLazy(channel, null);
+        } else if (options.containsKey(OPTION_PARALLEL) && !options.containsKey(OPTION_NL_AFTER_NOTE) && !options.containsKey(OPTION_RECOVER)) {
+            // OPTION_NL_AFTER_NOTE can carry state from one level-0 record to the next, so can't be parallel.
+            // Errors must be reported in order when recovering, so that can't be parallel either
+            readParallel(channel);
+        } else {
+            read(new GedcomCursor(channel));
         }
-        Record prev = null;
-        ByteArrayOutputStream value = new ByteArrayOutputStream();
-        Set<String> seenid = new HashSet<String>();
-        while (c >= 0) {
-            int valueSize = value.size();
-            int level = 0;
-            String id = null, tag = null, idref = null;
-            if (flag_whitespace || majorversion < 7) {  // not allowed in V7
-                while (c == 0x20) {
-                    c = in.read();
-                }
-                if (c == 0x0D) {
-                    c = in.read();
-                    if (c == 0x0A) {
-                        c = in.read();
-                    }
-                    line++;
-                    continue;
-                } else if (c == 0x0A) {
-                    c = in.read();
-                    line++;
-                    continue;
-                }
+    }
+
+    /**
+     * Return a GedcomPushParser which will load GEDCOM into this object as it is fed bytes,
+     * rather than reading them from a stream. Any records that already exist are removed;
+     * JSON is not supported. The load is a {@link #beginBulk bulk change}, which ends when
+     * {@link GedcomPushParser#complete} or {@link GedcomPushParser#close} is called or the parse
+     * fails, so if the input is abandoned the parser must be closed.
+     * <pre>
+     * GedcomPushParser parser = gedcom.newPushParser();
+     * while (parser.read(channel)) {
+     *     // wait until the channel is readable
+     * }
+     * </pre>
+     */
+    public GedcomPushParser newPushParser() {
+        sourcepath = null;
+        getRecords().clear();
+        idtable.clear();
+        GedcomPushParser parser = new GedcomPushParser(null);
+        parser.getOptions().putAll(options);
+        parser.setDiagnosticSink(sink);
+        parser.handler = new Builder(parser.parser, null, null);
+        parser.gedcom = this;
+        beginBulk();
+        return parser;
+    }
+
+    /**
+     * Parse a FileChannel in parallel. The HEAD is parsed first, then the rest of the file is split at
+     * lines beginning "0 " and each chunk parsed on a ForkJoinPool, then the results are stitched together
+     * in order. If anything fails the file is read again sequentially, so any error is reported exactly
+     * as it would be had it been read that way
+     */
+    private void readParallel(final FileChannel channel) throws IOException {
+        final long start = channel.position();
+        int threads = 0;
+        try {
+            threads = Integer.parseInt(options.get(OPTION_PARALLEL));
+        } catch (Exception e) { }
+        final ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+        try {
+            List<Long> bounds = split(channel, start, channel.size(), pool.getParallelism() * 4);
+            if (bounds.size() < 3) {
+                channel.position(start);
+                read(new GedcomCursor(channel));
+                return;
             }
-            // Read level
-            if (c >= '0' && c <= '9') {
-                level = c - '0';
-                while ((c = in.read()) >= '0' && c <= '9') {
-                    level = level * 10 + c - '0';
+            final Chunk[] chunks = new Chunk[bounds.size() - 1];
+            for (int i=0;i<chunks.length;i++) {
+                chunks[i] = new Chunk(bounds.get(i), bounds.get(i + 1));
+                if (chunks[i].end - chunks[i].start > Integer.MAX_VALUE) {
+                    channel.position(start);
+                    read(new GedcomCursor(channel));
+                    return;
                 }
-                if (c != ' ') {
-                    fail("Expected space after level", c, line);
-                }
-                c = in.read();
-            } else {
-                fail("Expected level", c, line);
-            }
-            // Read optional id
-            if (c == '@') {
-                while (((c = in.read()) >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_') {
-                    sb.append((char)c);
-                }
-                if (c == '@') {
-                    id = sb.toString();
-                    if (id.length() == 0) {
-                        fail("Zero length id", Integer.MAX_VALUE, line);
-                    } else if (id.equals("VOID")) {
-                        fail("VOID id", Integer.MAX_VALUE, line);
-                    } else if (!seenid.add(id)) {
-                        warning("Duplicate id \"" + id + "\", keeping first", line);
-                        id = null;
-                    }
-                    sb.setLength(0);
-                    c = in.read();
-                    if (c != ' ') {
-                        fail("Expected space after id", c, line);
+            }
+            // Diagnostics and statistics are kept with each chunk until they have all been parsed,
+            // so they can be reported in file order, or discarded if the file is read again
+            final GedcomCursor head = new GedcomCursor(chunks[0].map(channel));
+            head.getOptions().putAll(options);
+            head.setDiagnosticSink(chunks[0]);
+            head.setStatistics(chunks[0].statistics);
+            chunks[0].parse(head);
+            List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+            for (int i=1;i<chunks.length;i++) {
+                final Chunk chunk = chunks[i];
+                tasks.add(new Callable<Chunk>() {
+                    public Chunk call() throws IOException {
+                        GedcomCursor cursor = new GedcomCursor(chunk.map(channel));
+                        cursor.inherit(head);
+                        cursor.setDiagnosticSink(chunk);
+                        cursor.setStatistics(chunk.statistics);
+                        return chunk.parse(cursor);
                     }
-                    c = in.read();
-                } else {
-                    fail("Expected '@' after id", c, line);
+                });
+            }
+            try {
+                for (Future<Chunk> f : pool.invokeAll(tasks)) {
+                    f.get();
                 }
+            } catch (ExecutionException e) {
+                channel.position(start);
+                read(new GedcomCursor(channel));
+                return;
+            } catch (InterruptedException e) {
+                throw (IOException)new InterruptedIOException().initCause(e);
             }
-            // Read tag
-            if (c == '_' || (c >= 'A' && c <= 'Z')) {
-                sb.append((char)c);
-                while (((c = in.read()) >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_') {
-                    sb.append((char)c);
+
+            // Fix line numbers, which are relative to the start of each chunk
+            tasks.clear();
+            int line = 0;
+            for (int i=0;i<chunks.length;i++) {
+                final Chunk chunk = chunks[i];
+                final int offset = line;
+                line += chunk.lines;
+                if (offset > 0) {
+                    tasks.add(new Callable<Chunk>() {
+                        public Chunk call() {
+                            for (Record r : chunk.records) {
+                                offsetLineNumbers(r, offset);
+                            }
+                            return chunk;
+                        }
+                    });
                 }
-                if (c == ' ') {
-                    c = in.read();
-                } else if (c != 0x0D && c != 0x0A && c >= 0) {
-                    fail("Invalid tag character", c, line);
+            }
+            pool.invokeAll(tasks);
+
+            getRecords().clear();
+            idtable.clear();
+            long stitchstart = stats == null ? 0 : System.nanoTime();
+            Set<String> seenid = new HashSet<String>();
+            Set<Record> changed = Collections.newSetFromMap(new IdentityHashMap<Record,Boolean>());
+            interned = 0;
+            line = 0;
+            for (Chunk chunk : chunks) {
+                interned += chunk.interned;
+                List<Diagnostic> duplicates = new ArrayList<Diagnostic>();
+                for (int i=0;i<chunk.ids.size();i++) {
+                    String id = chunk.ids.get(i);
+                    Record r = chunk.idrecords.get(i);
+                    if (seenid.add(id)) {
+                        r.setId(id);
+                    } else {
+                        duplicates.add(new Diagnostic(Diagnostic.Kind.Warning, "Duplicate id \"" + id + "\", keeping first", r.getLineNumber(), -1, -2));
+                        while (r.owner() != null) {
+                            r = r.owner();
+                        }
+                        changed.add(r);     // no longer matches the file
+                    }
                 }
-                tag = sb.toString();
-                sb.setLength(0);
-                if (tag.equals("_")) {
-                    fail("Zero length tag", Integer.MAX_VALUE, line);
+                for (int i=0;i<chunk.records.size();i++) {
+                    Record r = chunk.records.get(i);
+                    if (!changed.contains(r)) {
+                        long end = i + 1 < chunk.records.size() ? chunk.offsets[i + 1] : chunk.end - chunk.start;
+                        r.setSource(chunk.start + chunk.offsets[i], (int)(end - chunk.offsets[i]));
+                    }
                 }
-            } else {
-                fail("Expected tag", c, line);
+                getRecords().addAll(chunk.records);
+                chunk.flush(line, chunk.start - start, duplicates);
+                line += chunk.lines;
             }
-
-
-            boolean append = prev != null && ((majorversion < 7 && "CONC".equals(tag)) || "CONT".equals(tag)) && level == prev.level() + 1 && prev.getIdRef() == null;
-            if (append && ("CONT".equals(tag) || flag_insertnewline)) {
-                value.write(0x0A);
-                flag_insertnewline = false;
+            sourcecharset = head.getCharset();
+            sourceversion = head.getMajorVersion();
+            if (stats != null) {
+                stats.addIdTableTime(System.nanoTime() - stitchstart, false);
             }
-            if (prev != null && prev.getIdRef() == null && !append) {
-                prev.setValue(toValueString(value, line, charset, majorversion));
-                value.reset();
+        } finally {
+            if (threads > 0) {
+                pool.shutdown();
             }
+        }
+    }
 
-            if (c == 0x0D || c == 0x0A || c < 0) {
-                // No value;
-            } else if (c == '@') {
-                c = in.read();
-                if (c == '@') {
-                    value.write(c);
-                    while ((c = in.read()) == 0x09 || c >= 0x20) {
-                        value.write(c);
-                    }
-                } else {
-                    sb.append((char)c);
-                    while (((c = in.read()) >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_') {
-                        sb.append((char)c);
-                    }
-                    if (c != '@') {
-                        fail("Expected '@' after idref", c, line);
-                    }
-                    idref = sb.toString();
-                    if (idref.length() == 0) {
-                        fail("Zero length idref", Integer.MAX_VALUE, line);
+    /**
+     * Split a FileChannel at lines beginning with "0 ". The first chunk is just the
+     * first level-0 record (the HEAD), the rest are roughly equal in size. Return the
+     * list of offsets, beginning with start and ending with end
+     */
+    private static List<Long> split(FileChannel channel, long start, long end, int count) throws IOException {
+        List<Long> l = new ArrayList<Long>();
+        l.add(start);
+        final long size = Math.min(MAXCHUNK, Math.max(MINCHUNK, (end - start) / count));
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        long pos = start;
+        while (pos < end) {
+            long boundary = -1;
+            while (boundary < 0 && pos + 2 < end) {
+                buf.clear();
+                int n = channel.read(buf, pos);
+                byte[] b = buf.array();
+                for (int i=0;i+2<n;i++) {
+                    if ((b[i] == 0x0A || b[i] == 0x0D) && b[i + 1] == '0' && b[i + 2] == ' ') {
+                        boundary = pos + i + 1;
+                        break;
                     }
-                    sb.setLength(0);
-                    c = in.read();
-                }
-            } else if (c == 0x09 || c >= 0x20) {
-                value.write(c);
-                while ((c = in.read()) == 0x09 || c >= 0x20) {
-                    value.write(c);
                 }
-            } else {
-                fail("Expected value", c, line);
+                pos += Math.max(1, n - 2);
             }
-            if (c == 0x0D) {
-                c = in.read();
-                if (c == 0x0A) {
-                    c = in.read();
-                }
-                line++;
-            } else if (c == 0x0A) {
-                c = in.read();
-                line++;
-            } else if (c >= 0) {
-                fail("Invalid character in value", c, line);
+            if (boundary < 0) {
+                break;
             }
-            if (append) {
-                continue;
+            l.add(boundary);
+            pos = boundary + (l.size() == 2 ? 0 : size);
+        }
+        l.add(end);
+        return l;
+    }
+
+    /**
+     * The result of parsing one section of the file in {@link #readParallel}
+     */
+    private class Chunk implements Diagnostic.Sink {
+        final long start, end;
+        final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+        final ParseStatistics statistics = stats == null ? null : new ParseStatistics();
+        final List<Record> records = new ArrayList<Record>();
+        final List<Record> idrecords = new ArrayList<Record>();
+        final List<String> ids = new ArrayList<String>();
+        long[] offsets = new long[64];      // the offset of each of the records from start
+        int lines;
+        long interned;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        ByteBuffer map(FileChannel channel) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+
+        void addOffset(long offset) {
+            int i = records.size();
+            if (i == offsets.length) {
+                offsets = Arrays.copyOf(offsets, i * 2);
             }
+            offsets[i] = offset;
+        }
 
-            Record e = newRecord(tag, null);;
-            e.setLineNumber(line);
-            if (id != null) {
-                e.setId(id);
+        Chunk parse(GedcomCursor cursor) throws IOException {
+            GedcomParser parser = new GedcomParser();
+            parser.parse(cursor, new Builder(parser, this, null));
+            lines = cursor.getLinesRead();
+            interned = cursor.getInternedBytes();
+            return this;
+        }
+
+        @Override public void add(Diagnostic d) {
+            diagnostics.add(d);
+        }
+
+        /**
+         * Report the diagnostics from this chunk, with line numbers and offsets made relative to the
+         * file rather than the chunk, merged in order of line with the duplicate ids found when the
+         * chunks were stitched together, and add the statistics from this chunk
+         */
+        void flush(int line, long offset, List<Diagnostic> duplicates) {
+            int j = 0;
+            for (int i=0;i<diagnostics.size();i++) {
+                Diagnostic d = diagnostics.get(i);
+                int dline = d.getLineNumber() < 0 ? d.getLineNumber() : d.getLineNumber() + line;
+                while (j < duplicates.size() && duplicates.get(j).getLineNumber() < dline) {
+                    report(duplicates.get(j++));
+                }
+                report(new Diagnostic(d.getKind(), d.getMessage(), dline, d.getOffset() < 0 ? d.getOffset() : d.getOffset() + offset, d.getChar()));
             }
-            if (idref != null) {
-                e.setIdRef(idref);
+            while (j < duplicates.size()) {
+                report(duplicates.get(j++));
             }
-            if (level == 0) {
-                getRecords().add(e);
-            } else if (level > prev.level() + 1) {
-                fail("Invalid nesting from level " + prev.level() + " to " + level, Integer.MAX_VALUE, line);
-            } else {
-                while (prev.level() >= level) {
-                    prev = prev.owner();
-                }
-                prev.getRecords().add(e);
-            }
-            if ("CHAR".equals(tag) && level == 1 && e.owner().tag().equals("HEAD")) {
-                String val = toValueString(value, line, charset, majorversion);
-                if ("UTF-8".equalsIgnoreCase(val)) {
-                    charset = CS_UTF8;
-                } else if ("ASCII".equalsIgnoreCase(val)) {
-                    charset = CS_ASCII;
-                } else if ("ANSEL".equalsIgnoreCase(val)) {
-                    charset = CS_ANSEL;
-                } else {
-                    warning("Ignoring unsupported charset \"" + charset + "\"", line);
-                }
-                if (majorversion >= 7 && charset != CS_UTF8) {
-                    throw new IOException("Invalid charset in version 7 \"" + charset + "\"");
+            if (statistics != null) {
+                stats.add(statistics);
+            }
+        }
+    }
+
+    private static void offsetLineNumbers(Record r, int offset) {
+        r.setLineNumber(r.getLineNumber() + offset);
+        for (Record r2 : r.getRecords()) {
+            offsetLineNumbers(r2, offset);
+        }
+    }
+
+    /**
+     * Read only the level-0 records from the channel, setting each one to be
+     * parsed from a slice of the mapped file when it is first accessed
+     */
+    private void readLazy(FileChannel channel, GedcomIndex index) throws IOException {
+        getRecords().clear();
+        idtable.clear();
+        final long size = channel.size() - channel.position();
+        ByteBuffer[] regions = map(channel);
+        GedcomCursor cursor = new GedcomCursor(channel);
+        cursor.getOptions().putAll(options);
+        cursor.setDiagnosticSink(sink);
+        cursor.setStatistics(stats);
+        Set<String> seenid = new HashSet<String>();
+        Record last = null;
+        long laststart = 0;
+        boolean lastchanged = false;
+        while (cursor.next()) {
+            if (last != null) {
+                last.setLazy(slice(regions, laststart, cursor.getOffset()));
+                if (!lastchanged) {
+                    last.setSource(laststart, (int)(cursor.getOffset() - laststart));
                 }
-            } else if ("VERS".equals(tag) && level == 2 && e.owner().tag().equals("GEDC") && e.owner().owner().tag().equals("HEAD")) {
-                String val = toValueString(value, line, charset, majorversion);
-                if (val.startsWith("7.")) {
-                    majorversion = 7;
-                    if (charset != CS_UTF8) {
-                        throw new IOException("Invalid charset in version 7");
-                    }
-                } else if (val.startsWith("5.")) {
-                    majorversion = 5;
+                getRecords().add(last);
+            }
+            Record r = newRecord(cursor.tag(), null);
+            r.setLineNumber(cursor.getLineNumber());
+            String id = cursor.id();
+            lastchanged = false;
+            if (id != null) {
+                if (seenid.add(id)) {
+                    r.setId(id);
+                } else {
+                    cursor.warning("Duplicate id \"" + id + "\", keeping first", cursor.getLineNumber());
+                    lastchanged = true;
                 }
-            } else if ("NOTE".equals(tag) && options.containsKey(OPTION_NL_AFTER_NOTE)) {
-                flag_insertnewline = true;
             }
-            prev = e;
+            if (cursor.idRef() != null) {
+                r.setIdRef(cursor.idRef());
+            }
+            if (index != null) {
+                index.add(cursor.getOffset(), r.getLineNumber(), r.tag(), r.getId(), r.getIdRef());
+            }
+            last = r;
+            laststart = cursor.getOffset();
+            cursor.skipChildren();
         }
-        if (prev != null && prev.getIdRef() == null) {
-            prev.setValue(toValueString(value, line, charset, majorversion));
+        if (last != null) {
+            last.setLazy(slice(regions, laststart, size));
+            if (!lastchanged) {
+                last.setSource(laststart, (int)(size - laststart));
+            }
+            getRecords().add(last);
+        }
+        lazycursor = new GedcomCursor(ByteBuffer.allocate(0));
+        lazycursor.inherit(cursor);
+        lazysnapshot = null;
+        interned = cursor.getInternedBytes();
+        sourcecharset = cursor.getCharset();
+        sourceversion = cursor.getMajorVersion();
+        if (index != null) {
+            index.setHead(cursor.getCharset(), cursor.getMajorVersion());
         }
     }
 
-    private static final String ANSEL;
-    static {
-        char[] c = new char[256];
-        for (int i=0;i<0x80;i++) {
-            c[i] = (char)i;
-        }
-        String q = "\u0141\u00D8\u0110\u00DE\u00C6\u0152\u02B9\u00B7\u266D\u00AE\u00B1\u01A0\u01AF\u02BC\u0000\u02BB\u0142\u00F8\u0111\u00FE\u00E6\u0153\u02BA\u0131\u00A3\u00F0\u0000\u01A1\u01B0\u25A1\u25A0\u00B0\u2113\u2117\u00A9\u266F\u00BF\u00A1\u0000\u20AC\u0000\u0000\u0000\u0000\u0065\u006F\u00DF\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0309\u0300\u0301\u0302\u0303\u0304\u0306\u0307\u0308\u030C\u030A\uFE20\uFE21\u0315\u030B\u0310\u0327\u0328\u0323\u0324\u0325\u0333\u0332\u0326\u031C\u032E\uFE22\uFE23\u0338\u0000\u0313\u0000"; // starts at 0xa1
-        for (int i=0xA1;i<0x100;i++) {
-            c[i] = q.charAt(i - 0xA1);
+    /**
+     * As for {@link #readLazy}, but take the level-0 records from an index rather than scanning the file
+     */
+    private void readIndex(FileChannel channel, GedcomIndex index) throws IOException {
+        getRecords().clear();
+        idtable.clear();
+        final long size = channel.size() - channel.position();
+        ByteBuffer[] regions = map(channel);
+        for (int i=0;i<index.size();i++) {
+            Record r = newRecord(index.getTag(i), null);
+            r.setLineNumber(index.getLineNumber(i));
+            if (index.getId(i) != null) {
+                r.setId(index.getId(i));
+            }
+            if (index.getIdRef(i) != null) {
+                r.setIdRef(index.getIdRef(i));
+            }
+            long end = i + 1 < index.size() ? index.getOffset(i + 1) : size;
+            r.setLazy(slice(regions, index.getOffset(i), end));
+            r.setSource(index.getOffset(i), (int)(end - index.getOffset(i)));
+            getRecords().add(r);
         }
-        ANSEL = new String(c);
+        lazycursor = new GedcomCursor(ByteBuffer.allocate(0));
+        lazycursor.inherit(options, index.getCharset(), index.getMajorVersion());
+        lazycursor.setDiagnosticSink(sink);
+        lazysnapshot = null;
+        interned = 0;
+        sourcecharset = index.getCharset();
+        sourceversion = index.getMajorVersion();
     }
 
-    private Record jsonToRecord(Map<String,Object> m) {
-        String tag = (String)m.get("tag");
-        String id = (String)m.get("id");
-        String value = (String)m.get("value");
-        String idref = (String)m.get("idref");
-        @SuppressWarnings("unchecked") List<Map<String,Object>> kids = (List<Map<String,Object>>)m.get("records");
-        Record r = newRecord(tag, null);
-        if (id != null) {
-            r.setId(id);
+    /**
+     * Map the channel from its position to the end into a list of regions
+     */
+    private static ByteBuffer[] map(FileChannel channel) throws IOException {
+        final long start = channel.position();
+        final long size = channel.size() - start;
+        ByteBuffer[] regions = new ByteBuffer[(int)((size + MAPSIZE - 1) / MAPSIZE)];
+        for (int i=0;i<regions.length;i++) {
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + (long)i * MAPSIZE, Math.min(MAPSIZE, size - (long)i * MAPSIZE));
         }
-        if (idref != null) {
-            r.setIdRef(idref);
-        } else if (value != null) {
-            r.setValue(value);
+        return regions;
+    }
+
+    /**
+     * Return the bytes from start to end from the list of mapped regions, copying them if they span two regions
+     */
+    static ByteBuffer slice(ByteBuffer[] regions, long start, long end) {
+        int i = (int)(start / MAPSIZE);
+        if (i == (int)((end - 1) / MAPSIZE)) {
+            ByteBuffer b = regions[i].duplicate();
+            b.position((int)(start - (long)i * MAPSIZE));
+            b.limit((int)(end - (long)i * MAPSIZE));
+            return b.slice();
         }
-        if (kids != null) {
-            for (Map<String,Object> m2 : kids) {
-                r.getRecords().add(jsonToRecord(m2));
-            }
+        ByteBuffer b = ByteBuffer.allocate((int)(end - start));
+        for (;i<regions.length && b.hasRemaining();i++) {
+            ByteBuffer r = regions[i].duplicate();
+            r.position((int)Math.max(0, start - (long)i * MAPSIZE));
+            r.limit((int)Math.min(r.capacity(), end - (long)i * MAPSIZE));
+            b.put(r);
         }
-        return r;
+        b.flip();
+        return b;
     }
 
-    private String toValueString(ByteArrayOutputStream in, int line, int charset, int majorversion) throws IOException {
-        String s = new String(in.toByteArray(), charset == CS_UTF8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
-        if (charset == CS_ANSEL) {
-            StringBuilder sb = new StringBuilder();
-            for (int i=0;i<s.length();i++) {
-                int c0 = s.charAt(i);
-                char c1 = ANSEL.charAt(c0);
-                if (c1 == 0) {
-                    fail("Invalid ANSEL codepoint 0x" + Integer.toHexString(c0), Integer.MAX_VALUE, line);
+    /**
+     * Parse the value and descendants of a record read with {@link #OPTION_LAZY}
+     * @param r the level-0 record
+     * @param buf the bytes for the record, beginning with its first line
+     */
+    void load(Record r, ByteBuffer buf) {
+        if (lazysnapshot != null) {
+            synchronized (lazysnapshot) {
+                try {
+                    lazysnapshot.load(this, r, buf);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed reading snapshot record \"" + r.tag() + "\"", e);
                 }
-                sb.append(c1);
             }
-            s = sb.toString();
+            return;
         }
-        if (majorversion >= 7) {
-            for (int i=0;i<s.length();) {
-                int c = s.codePointAt(i);
-                if (c == 0xFEFF || (c >= 0x7F && c <= 0x9F) || (c < 0x20 && c != 0x09 && c != 0x0A)) {
-                    fail("Banned character in value", c, line);
-                }
-                i += c < 0x10000 ? 1 : 2;
+        synchronized (lazycursor) {     // records may be loaded by writeParallel
+            lazycursor.restart(buf, r.getLineNumber() - 1);
+            GedcomParser parser = new GedcomParser();
+            try {
+                parser.parse(lazycursor, new Builder(parser, null, r));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed parsing record at line " + r.getLineNumber(), e);
+            }
+        }
+    }
+
+    private void read(GedcomCursor cursor) throws IOException {
+        getRecords().clear();
+        idtable.clear();
+        GedcomParser parser = new GedcomParser();
+        cursor.getOptions().putAll(options);
+        cursor.setDiagnosticSink(sink);
+        cursor.setStatistics(stats);
+        Builder builder = new Builder(parser, null, null);
+        parser.parse(cursor, builder);
+        builder.finish(cursor.getBytesRead());
+        interned = cursor.getInternedBytes();
+        sourcecharset = cursor.getCharset();
+        sourceversion = cursor.getMajorVersion();
+    }
+
+    /**
+     * Read the first bytes of a FileChannel from its current position, without moving it
+     */
+    private static int head(FileChannel channel, byte[] head) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(head);
+        channel.read(buf, channel.position());
+        return buf.position();
+    }
+
+    /**
+     * Return '[' if the bytes are the start of a JSON array, '{' if they're the
+     * start of JSON Lines, or 0 if they're neither
+     */
+    private static int jsonType(byte[] head, int len) {
+        int i = 0;
+        if (len >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            i = 3;
+        }
+        return i < len && (head[i] == '[' || head[i] == '{') ? head[i] : 0;
+    }
+
+    private void readJSON(InputStream in, boolean lines) throws IOException {
+        getRecords().clear();
+        idtable.clear();
+        JSONReader reader = new JSONReader(this, in);
+        if (lines) {
+            Record r;
+            while ((r = reader.readRecord()) != null) {
+                records.add(r);
             }
         } else {
-            for (int i=0;i<s.length();) {
-                int c = s.codePointAt(i);
-                if ((c >= 0x7F && c <= 0x9F) || (c < 0x20 && c != 0x09 && c != 0x0A)) {
-                    fail("Banned character in value", c, line);
+            reader.readArray(records);
+        }
+    }
+
+    /**
+     * Parse JSON Lines from a FileChannel in parallel. The file is split at newlines into chunks
+     * of roughly equal size, each is parsed on a ForkJoinPool, then the records are added in order.
+     * If anything fails the file is read again sequentially, so any error is reported exactly
+     * as it would be had it been read that way
+     */
+    private void readJSONParallel(final FileChannel channel) throws IOException {
+        final long start = channel.position();
+        int threads = 0;
+        try {
+            threads = Integer.parseInt(options.get(OPTION_PARALLEL));
+        } catch (Exception e) { }
+        final ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+        try {
+            final List<Long> bounds = splitLines(channel, start, channel.size(), pool.getParallelism() * 4);
+            List<Callable<List<Record>>> tasks = new ArrayList<Callable<List<Record>>>();
+            for (int i=0;i+1<bounds.size();i++) {
+                final long chunkstart = bounds.get(i), chunkend = bounds.get(i + 1);
+                tasks.add(new Callable<List<Record>>() {
+                    public List<Record> call() throws IOException {
+                        ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, chunkstart, chunkend - chunkstart);
+                        JSONReader reader = new JSONReader(GEDCOM.this, buf);
+                        List<Record> l = new ArrayList<Record>();
+                        Record r;
+                        while ((r = reader.readRecord()) != null) {
+                            l.add(r);
+                        }
+                        return l;
+                    }
+                });
+            }
+            List<List<Record>> results = new ArrayList<List<Record>>();
+            try {
+                for (Future<List<Record>> f : pool.invokeAll(tasks)) {
+                    results.add(f.get());
                 }
-                i += c < 0x10000 ? 1 : 2;
+            } catch (ExecutionException e) {
+                channel.position(start);
+                readJSON(Channels.newInputStream(channel), true);
+                return;
+            } catch (InterruptedException e) {
+                throw (IOException)new InterruptedIOException().initCause(e);
+            }
+            getRecords().clear();
+            idtable.clear();
+            for (List<Record> l : results) {
+                records.addAll(l);
+            }
+        } finally {
+            if (threads > 0) {
+                pool.shutdown();
             }
-            s = s.replaceAll("@@", "@");
         }
-        return s;
     }
 
-    private void warning(String msg, int line) throws IOException {
-        if (line >= 0) {
-            msg += " (line " + line + ")";
+    /**
+     * Split a FileChannel after newlines into chunks of roughly equal size.
+     * Return the list of offsets, beginning with start and ending with end
+     */
+    private static List<Long> splitLines(FileChannel channel, long start, long end, int count) throws IOException {
+        List<Long> l = new ArrayList<Long>();
+        l.add(start);
+        final long size = Math.min(MAXCHUNK, Math.max(MINCHUNK, (end - start) / count));
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        long pos = start + size;
+        while (pos < end) {
+            long boundary = -1;
+            while (boundary < 0 && pos < end) {
+                buf.clear();
+                int n = channel.read(buf, pos);
+                if (n <= 0) {
+                    break;
+                }
+                byte[] b = buf.array();
+                for (int i=0;i<n;i++) {
+                    if (b[i] == 0x0A) {
+                        boundary = pos + i + 1;
+                        break;
+                    }
+                }
+                pos += n;
+            }
+            if (boundary < 0 || boundary >= end) {
+                break;
+            }
+            l.add(boundary);
+            pos = boundary + size;
         }
-        System.out.println("WARNING: " + msg);
+        l.add(end);
+        return l;
     }
 
-    private void fail(String msg, int c, int line) throws IOException {
-        if (c >= 0x20 && c <= 0x7e) {
-            msg += " (got '" + ((char)c) + "')";
-        } else if (c < 0) {
-            msg += " (got EOF)";
-        } else if (c < Integer.MAX_VALUE) {
-            msg += " (got 0x" + Integer.toHexString(c) + ")";
+    /**
+     * The GedcomHandler used by {@link #read} to build the tree of Records
+     */
+    private class Builder implements GedcomHandler {
+        private final GedcomParser parser;
+        private final Chunk chunk;
+        private final Record target;
+        private final Set<String> seenid = new HashSet<String>();
+        private Record[] stack = new Record[8];
+        private Record last;
+        private Record pending;         // the level-0 record being read, to set the source of when it ends
+        private long pendingstart;
+        private boolean pendingchanged;
+
+        /**
+         * @param parser the parser
+         * @param chunk if not null, add level-0 records to this chunk rather than the GEDCOM,
+         * and collect the ids rather than setting them.
+         * @param target if not null, the existing level-0 record to add the value and descendants to
+         */
+        Builder(GedcomParser parser, Chunk chunk, Record target) {
+            this.parser = parser;
+            this.chunk = chunk;
+            this.target = target;
+        }
+
+        @Override public void startRecord(int level, String id, String tag, String idref) throws IOException {
+            if (level == 0 && target != null) {
+                stack[level] = last = target;
+                return;
+            }
+            Record e = newRecord(tag, null);
+            e.setLineNumber(parser.getLineNumber());
+            if (level == 0 && target == null) {
+                long offset = parser.getOffset();
+                if (chunk != null) {
+                    chunk.addOffset(offset);
+                } else {
+                    finish(offset);
+                    pending = e;
+                    pendingstart = offset;
+                }
+            }
+            if (id != null) {
+                if (chunk != null) {
+                    chunk.idrecords.add(e);
+                    chunk.ids.add(id);
+                } else {
+                    long start = stats == null ? 0 : System.nanoTime();
+                    if (seenid.add(id)) {
+                        e.setId(id);
+                    } else {
+                        parser.warning("Duplicate id \"" + id + "\", keeping first", parser.getLineNumber());
+                        pendingchanged = true;      // no longer matches the file
+                    }
+                    if (stats != null) {
+                        stats.addIdTableTime(System.nanoTime() - start, true);
+                    }
+                }
+            }
+            if (idref != null) {
+                e.setIdRef(idref);
+            }
+            if (level == 0) {
+                if (chunk != null) {
+                    chunk.records.add(e);
+                } else {
+                    getRecords().add(e);
+                }
+            } else {
+                stack[level - 1].getRecords().add(e);
+            }
+            if (level + 1 == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[level] = last = e;
+        }
+
+        @Override public void value(String value) {
+            last.setValue(value);
+        }
+
+        @Override public void endRecord(int level, String tag) {
+            stack[level] = null;
+        }
+
+        /**
+         * Set the source of the level-0 record being read, which ends at the specified offset
+         */
+        void finish(long end) {
+            if (pending != null && !pendingchanged) {
+                pending.setSource(pendingstart, (int)(end - pendingstart));
+            }
+            pending = null;
+            pendingchanged = false;
         }
-        throw new IOException(msg + " (line " + line + ")");
     }
 
     //-------------------------------------------------------------
 
+    /**
+     * Report a Diagnostic to the sink, or print it if there isn't one, as GedcomCursor does
+     */
+    private void report(Diagnostic d) {
+        if (sink != null) {
+            sink.add(d);
+        } else {
+            System.out.println(d);
+        }
+    }
+
     Record resolveIdRef(String id) {
         return idtable.get(id);
     }
@@ -428,6 +1270,105 @@ public class GEDCOM {
         return records;
     }
 
+    /**
+     * Start a bulk change. Until the matching call to {@link #endBulk}, records added to or removed
+     * from this GEDCOM are not checked for duplicate ids, the table used to resolve references
+     * is not updated and cached {@link Person#getConnections connections} are not reset, so
+     * {@link Record#dereference} may return stale results. Bulk changes can be nested, and all
+     * reads are done as a bulk change.
+     */
+    public void beginBulk() {
+        bulk++;
+    }
+
+    /**
+     * End a bulk change started with {@link #beginBulk}. When the outermost change ends the id table
+     * is rebuilt and all connections reset in one pass over the level-0 records. If any ids are
+     * duplicated, the first record with each id is kept in the table and an IllegalStateException
+     * listing all of them is thrown, although the records remain in the GEDCOM
+     */
+    public void endBulk() {
+        endBulk(null);
+    }
+
+    /**
+     * End a bulk change. If it is ending because of an exception, any duplicate
+     * ids are added to that as a suppressed exception rather than thrown
+     */
+    void endBulk(Throwable failure) {
+        if (bulk == 0) {
+            throw new IllegalStateException("Not in bulk");
+        }
+        if (--bulk > 0) {
+            return;
+        }
+        long start = stats == null ? 0 : System.nanoTime();
+        Map<String,Record> table = new HashMap<String,Record>(Math.max(16, records.size() * 4 / 3));
+        Set<String> duplicates = null;
+        for (int i=0;i<records.size();i++) {
+            Record r = records.get(i);
+            String id = r.getId();
+            if (id != null) {
+                Record old = table.put(id, r);
+                if (old != null) {
+                    table.put(id, old);
+                    if (duplicates == null) {
+                        duplicates = new LinkedHashSet<String>();
+                    }
+                    duplicates.add(id);
+                }
+            }
+            if (r instanceof Person) {
+                ((Person)r).resetConnections();
+            }
+        }
+        idtable.clear();
+        idtable.putAll(table);
+        if (stats != null) {
+            stats.addIdTableTime(System.nanoTime() - start, false);
+        }
+        if (duplicates != null) {
+            StringBuilder sb = new StringBuilder(duplicates.size() == 1 ? "Duplicate id " : "Duplicate ids ");
+            for (String id : duplicates) {
+                if (sb.charAt(sb.length() - 1) == '"') {
+                    sb.append(", ");
+                }
+                sb.append('"').append(id).append('"');
+            }
+            IllegalStateException e = new IllegalStateException(sb.toString());
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Run the specified task as a bulk change, as if it were wrapped in calls to {@link #beginBulk}
+     * and {@link #endBulk}. If the task throws an exception, any duplicate ids are added to it
+     * as a suppressed exception
+     * @param task the task to run
+     */
+    public void bulk(Runnable task) {
+        beginBulk();
+        Throwable failure = null;
+        try {
+            task.run();
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            endBulk(failure);
+        }
+    }
+
+    /**
+     * Return true if a bulk change is in progress
+     */
+    boolean isBulk() {
+        return bulk > 0;
+    }
+
     /**
      * Create a new record which can be added to this GEDCOM or one of its records
      * @param tag the tag (required)
@@ -484,6 +1425,219 @@ public class GEDCOM {
      * @param out the OutputStream to write to
      */
     public void write(OutputStream out) throws IOException {
+        Header header = prepareHeader();
+        GedcomWriter writer = new GedcomWriter(out, header.getVersion(), header.getMajorVersion());
+        int size = getRecords().size();
+        if (getRecords().get(size - 1).tag().equals("TRLR")) {
+            size--;
+        }
+        if (options.containsKey(OPTION_PARALLEL) && size > MINBATCH) {
+            write(writer, 0, 1);
+            writeParallel(out, writer, 1, size);
+        } else {
+            write(writer, 0, size);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Write the GEDCOM to a file, as for {@link #write(OutputStream)}. If this GEDCOM was read by
+     * {@link #read(Path)} from a UTF-8 GEDCOM file which hasn't changed since, any level-0 record
+     * that hasn't been modified is copied from that file exactly as it was read rather than being
+     * written again, so saving a large GEDCOM after a few changes costs little more than copying
+     * the file. A record is modified if its value, id or list of records, or that of any of its
+     * descendants, is changed, or if it refers to a record that doesn't exist, as those references
+     * are not written. The file is written to a temporary file then moved into place,
+     * so it can replace the file this GEDCOM was read from, and becomes the file that unmodified
+     * records are copied from next time.
+     * @param path the file to write
+     */
+    public void write(Path path) throws IOException {
+        Path tmp = createTempFile(path);
+        long[] sources = null;
+        boolean done = false;
+        try {
+            FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            FileChannel src = openSource();
+            try {
+                if (src != null && prepareHeader().getMajorVersion() == sourceversion) {
+                    sources = writeIncremental(src, out);
+                } else {
+                    write(Channels.newOutputStream(out));
+                }
+            } finally {
+                out.close();
+                if (src != null) {
+                    src.close();
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        sourcepath = null;
+        if (sources != null) {
+            for (int i=0;i<records.size();i++) {
+                records.get(i).setSource(i < sources.length / 2 ? sources[i * 2] : -1, i < sources.length / 2 ? (int)sources[i * 2 + 1] : 0);
+            }
+            sourcesize = Files.size(path);
+            sourcetime = Files.getLastModifiedTime(path);
+            sourcecharset = GedcomCursor.CS_UTF8;
+            sourcepath = path;
+        }
+    }
+
+    /**
+     * Create a temporary file to write to before moving it to the specified path. It is created in the
+     * same directory with the default permissions for a new file, then given the permissions of the
+     * existing file if there is one, so replacing a file doesn't change who can read it
+     */
+    static Path createTempFile(Path path) throws IOException {
+        Path tmp;
+        while (true) {
+            tmp = path.resolveSibling(path.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + ".tmp");
+            try {
+                Files.createFile(tmp);
+                break;
+            } catch (FileAlreadyExistsException e) { }
+        }
+        try {
+            if (Files.exists(path)) {
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(path));
+            }
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX filesystem
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return tmp;
+    }
+
+    /**
+     * Return true if unchanged level-0 records can be copied from the file they were read from
+     */
+    boolean hasSource() {
+        return sourcepath != null;
+    }
+
+    /**
+     * Open the file unchanged level-0 records were read from, or return null if there
+     * isn't one or it has changed since it was read
+     */
+    private FileChannel openSource() {
+        if (sourcepath != null) {
+            try {
+                FileChannel channel = FileChannel.open(sourcepath, StandardOpenOption.READ);
+                if (channel.size() == sourcesize && Files.getLastModifiedTime(sourcepath).equals(sourcetime)) {
+                    return channel;
+                }
+                channel.close();
+            } catch (IOException e) { }
+        }
+        return null;
+    }
+
+    /**
+     * Write the level-0 records, copying those that are unchanged from the source file.
+     * Return the offset and length in the output of each level-0 record written, or -1 if skipped
+     */
+    private long[] writeIncremental(FileChannel src, FileChannel out) throws IOException {
+        Header header = getHeader();
+        GedcomWriter writer = new GedcomWriter(Channels.newOutputStream(out), header.getVersion(), header.getMajorVersion());
+        int size = getRecords().size();
+        if (getRecords().get(size - 1).tag().equals("TRLR")) {
+            size--;
+        }
+        long[] sources = new long[size * 2];
+        long copied = 0;
+        for (int i=0;i<size;i++) {
+            Record r = getRecords().get(i);
+            sources[i * 2] = -1;
+            if (isEmptyFamily(r) || r.tag().equals("TRLR")) {
+                continue;
+            }
+            long start = writer.position() + copied;
+            long offset = r.getSourceOffset();
+            if (offset >= 0 && r != header && !hasMissingRef(r)) {
+                writer.flush();
+                long len = r.getSourceLength();
+                ByteBuffer last = ByteBuffer.allocate(1);
+                if (len == 0 || src.read(last, offset + len - 1) != 1) {
+                    throw new EOFException("Source file \"" + sourcepath + "\" truncated");
+                }
+                while (len > 0) {
+                    long n = src.transferTo(offset, len, out);
+                    if (n <= 0) {
+                        throw new EOFException("Source file \"" + sourcepath + "\" truncated");
+                    }
+                    offset += n;
+                    len -= n;
+                }
+                copied += r.getSourceLength();
+                byte b = last.get(0);
+                if (b != '\n' && b != '\r') {
+                    // The last record in a file with no TRLR may have no newline
+                    out.write(ByteBuffer.wrap(new byte[] { '\n' }));
+                    copied++;
+                }
+            } else {
+                write(writer, r, 0);
+            }
+            sources[i * 2] = start;
+            sources[i * 2 + 1] = writer.position() + copied - start;
+        }
+        writer.finish();
+        return sources;
+    }
+
+    /**
+     * Return true if the record or any of its descendants refers to a record that doesn't exist
+     */
+    private boolean hasMissingRef(Record r) {
+        if (!r.isLoaded() && lazysnapshot == null) {
+            return hasMissingRef(r.getLazy(), r.getLineNumber());
+        }
+        if (r.getIdRef() != null) {
+            return !idtable.containsKey(r.getIdRef());
+        }
+        for (Record r2 : r.getRecords()) {
+            if (hasMissingRef(r2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the unparsed bytes of a lazy record refer to a record that doesn't exist. They
+     * are scanned with the cursor rather than loaded, so writing doesn't load every record.
+     * If they can't be parsed, return true so the record is loaded and the error reported
+     */
+    private boolean hasMissingRef(ByteBuffer buf, int line) {
+        synchronized (lazycursor) {
+            lazycursor.restart(buf, line - 1);
+            try {
+                while (lazycursor.next()) {
+                    String idref = lazycursor.idRef();
+                    if (idref != null && !idtable.containsKey(idref)) {
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check there is a HEAD record and set its CHAR to UTF-8, as that's what is written
+     */
+    private Header prepareHeader() {
         Header header = getHeader();
         if (header == null) {
             throw new IllegalStateException("No header");
@@ -494,92 +1648,104 @@ public class GEDCOM {
         } else if (!r.getValue().equals("UTF-8")) {
             header.getRecords().set(header.getRecords().indexOf(r), newRecord("CHAR", "UTF-8"));
         }
-        int majorversion = header.getMajorVersion();
-        final int maxlength = majorversion <= 5 ? 90 : Integer.MAX_VALUE;
-        int[] line = new int[1];
-        for (int i=0;i<getRecords().size();i++) {
-            r = getRecords().get(i);
-            if (i + 1 == getRecords().size() && r.tag().equals("TRLR")) {
-                continue;
+        return header;
+    }
+
+    /**
+     * Return true if the record is a family with no husband, wife or children, which isn't written
+     */
+    private static boolean isEmptyFamily(Record r) {
+        if (r instanceof Family) {
+            Family f = (Family)r;
+            return f.getHusband() == null && f.getWife() == null && f.getChildren().isEmpty();
+        }
+        return false;
+    }
+
+    /**
+     * Write the level-0 records from start to end, skipping empty families and any TRLR
+     */
+    private void write(final GedcomWriter writer, final int start, final int end) throws IOException {
+        for (int i=start;i<end;i++) {
+            Record r = getRecords().get(i);
+            if (!isEmptyFamily(r) && !r.tag().equals("TRLR")) {
+                write(writer, r, 0);
             }
-            if (r instanceof Family) {
-                Family f = (Family)r;
-                if (f.getHusband() == null && f.getWife() == null && f.getChildren().isEmpty()) {
-                    continue;
+        }
+    }
+
+    /**
+     * Write the level-0 records from start to end by encoding batches of them into byte arrays on a
+     * ForkJoinPool, and writing the arrays in order. Only a few batches are queued at once, so the
+     * memory used doesn't depend on the size of the GEDCOM.
+     */
+    private void writeParallel(final OutputStream out, final GedcomWriter writer, final int start, final int end) throws IOException {
+        int threads = 0;
+        try {
+            threads = Integer.parseInt(options.get(OPTION_PARALLEL));
+        } catch (Exception e) { }
+        final ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+        final Header header = getHeader();
+        final int batch = Math.max(MINBATCH, (end - start) / (pool.getParallelism() * 8));
+        final ArrayDeque<Future<byte[]>> queue = new ArrayDeque<Future<byte[]>>();
+        try {
+            writer.flush();
+            int i = start;
+            while (i < end || !queue.isEmpty()) {
+                while (i < end && queue.size() < pool.getParallelism() * 2) {
+                    final int from = i, to = Math.min(end, i + batch);
+                    queue.add(pool.submit(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                            GedcomWriter w = new GedcomWriter(bout, header.getVersion(), header.getMajorVersion());
+                            w.setFragment();
+                            write(w, from, to);
+                            w.flush();
+                            return bout.toByteArray();
+                        }
+                    }));
+                    i = to;
+                }
+                try {
+                    out.write(queue.remove().get());
+                } catch (ExecutionException e) {
+                    Throwable t = e.getCause();
+                    if (t instanceof IOException) {
+                        throw (IOException)t;
+                    } else if (t instanceof RuntimeException) {
+                        throw (RuntimeException)t;
+                    } else if (t instanceof Error) {
+                        throw (Error)t;
+                    }
+                    throw new IOException(t);
+                } catch (InterruptedException e) {
+                    throw (IOException)new InterruptedIOException().initCause(e);
                 }
             }
-            write(out, r, line, maxlength);
+        } finally {
+            for (Future<byte[]> f : queue) {
+                f.cancel(false);
+            }
+            if (threads > 0) {
+                pool.shutdown();
+            }
         }
-        out.write("0 TRLR\n".getBytes("UTF-8"));
-        out.flush();
     }
 
-    private void write(final OutputStream out, final Record r, final int[] line, final int maxlength) throws IOException {
+    private void write(final GedcomWriter writer, final Record r, final int level) throws IOException {
         if (r.getIdRef() != null && !idtable.containsKey(r.getIdRef())) {
             return;
         }
-        StringBuilder sb = new StringBuilder();
-        sb.append(r.level());
-        sb.append(' ');
-        if (r.getId() != null) {
-            sb.append('@');
-            sb.append(r.getId());
-            sb.append("@ ");
-        }
-        sb.append(r.tag());
+        writer.begin(level, r.getId(), r.tag());
         if (r.getIdRef() != null) {
-            sb.append(" @");
-            sb.append(r.getIdRef());
-            sb.append("@");
-            out.write(sb.toString().getBytes("UTF-8"));
+            writer.ref(r.getIdRef());
         } else {
-            byte[] b = sb.toString().getBytes("UTF-8");
-            out.write(b);
-            int len = b.length;
-            b = r.getValue().getBytes("UTF-8");
-            if (b.length > 0) {
-                out.write(' ');
-                len++;
-            }
-            for (int i=0;i<b.length;i++) {
-                int v = b[i] & 0xFF;
-                int charwidth = v < 0xC0 ? 1 : v < 0xDF ? 2 : v < 0xEF ? 3 : 4;
-                if (v == 0x0D) {
-                    continue;
-                } else if (v == 0x0A) {
-                    out.write(0x0A);
-                    line[0]++;
-                    sb.setLength(0);
-                    sb.append(r.level() + 1);
-                    sb.append(" CONT");
-                    byte[] bt = sb.toString().getBytes("UTF-8");
-                    out.write(bt);
-                    if (!(i + 1 == b.length || (b[i + 1] & 0xFF) == 0x0A)) {
-                        out.write(' ');
-                    }
-                    len = bt.length;
-                } else if (len + charwidth >= maxlength) {
-                    out.write(0x0A);
-                    line[0]++;
-                    sb.setLength(0);
-                    sb.append(r.level() + 1);
-                    sb.append(" CONC ");
-                    byte[] bt = sb.toString().getBytes("UTF-8");
-                    out.write(bt);
-                    len = bt.length;
-                    out.write(v);
-                    len++;
-                } else {
-                    out.write(v);
-                    len++;
-                }
-            }
+            writer.value(r.getValue());
         }
-        out.write(0x0A);
-        line[0]++;
         for (Record r2 : r.getRecords()) {
-            write(out, r2, line, maxlength);
+            write(writer, r2, level + 1);
         }
+        writer.end();
     }
 
 }
@@ -0,0 +1,1021 @@
+package gedcomj;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * A pull-parser for GEDCOM, which steps through the records in the file one at a time.
+ * Internal buffers are reused, so no String is allocated unless one of the methods returning
+ * a String is called. CONC/CONT lines are joined into the value of the record they continue,
+ * and the charset and version are taken from the HEAD record. This is the tokenizer used by
+ * {@link GedcomParser} and {@link GEDCOM#read}.
+ * <pre>
+ * GedcomCursor cursor = new GedcomCursor(in);
+ * while (cursor.next()) {
+ *     if (cursor.level() == 0 &amp;&amp; !cursor.isTag("INDI")) {
+ *         cursor.skipChildren();
+ *     } else if (cursor.isTag("NAME")) {
+ *         System.out.println(cursor.valueAsCharSequence());
+ *     }
+ * }
+ * </pre>
+ */
+public class GedcomCursor {
+
+    static final int EOL_LF = 1, EOL_CRLF = 2, EOL_CR = 4;
+    static final int CS_UTF8 = 0, CS_ASCII = 1, CS_ANSEL = 2;
+
+    /**
+     * Thrown by fail() when recovering from errors, to skip the rest of the line
+     */
+    private static final class Resync extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        Resync() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Resync RESYNC = new Resync();
+
+    private static final class Token {
+        int level, line, taglen, idlen;
+        long offset;
+        byte[] tag = new byte[8], id = new byte[16];
+    }
+
+    private final Map<String,String> options = new HashMap<String,String>();
+    private static final int MAPSIZE = 1<<30;
+
+    private final InputStream in;
+    private final FileChannel channel;
+    private ByteBuffer src;             // if not reading from a stream, the buffer to read from
+    private long mapped;                // if reading from a channel, the position in the channel after src
+    private final byte[] buf = new byte[65536];
+    private final ByteBuffer bufwords = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);  // to read buf eight bytes at a time
+    private int pos, limit;
+    private long base;                  // the offset of buf[0] from the start of the input
+    private int c;                      // the current byte, already read from buf
+    private int line;                   // the number of line terminators read so far
+    private int charset, majorversion;
+    private int endings;                // the EOL_ constants for the line endings seen
+    private boolean started, inherited, flag_whitespace, flag_nlafternote, flag_insertnewline, flag_recover, inhead, ingedc;
+    private Diagnostic.Sink sink;
+    private ParseStatistics stats;
+    private long statrecords, statconc, statcont, statdecode;
+    private int statline, statpeak;
+    private Map<String,long[]> stattags;
+
+    private Token cur = new Token(), pending = new Token();
+    private boolean hascur, haspending, hasidref;
+    private byte[] idref = new byte[16];
+    private int idreflen;
+    private byte[] value = new byte[256];
+    private ByteBuffer valuewords = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+    private int valuelen;
+    private boolean checked, ascii;     // whether value has been checked, and if so whether it's all ASCII
+    private char[] chars = new char[256];
+    private CharBuffer charbuf;
+    private ByteBuffer valuebuf;
+    private CharsetDecoder decoder;
+    private String tagString, idString, idrefString, valueString;
+    private Interner tags, values;
+    private int internlen;
+
+    /**
+     * Create a new GedcomCursor
+     * @param in the InputStream to read from
+     */
+    public GedcomCursor(InputStream in) {
+        this.in = in;
+        this.channel = null;
+    }
+
+    /**
+     * Create a new GedcomCursor which reads from a ByteBuffer,
+     * from its position to its limit
+     * @param buf the buffer to read from
+     */
+    public GedcomCursor(ByteBuffer buf) {
+        this.in = null;
+        this.channel = null;
+        this.src = buf.duplicate();
+    }
+
+    /**
+     * Create a new GedcomCursor which reads from a FileChannel, from
+     * its current position to the end. The file is memory-mapped
+     * as it is read, and the channel is not closed by this class
+     * @param channel the channel to read from
+     */
+    public GedcomCursor(FileChannel channel) throws IOException {
+        this.in = null;
+        this.channel = channel;
+        this.mapped = channel.position();
+    }
+
+    /**
+     * Get a Map which can contain various options to control parsing,
+     * the same as {@link GEDCOM#getOptions}. Options must be set
+     * before the first call to {@link #next}
+     */
+    public Map<String,String> getOptions() {
+        return options;
+    }
+
+    /**
+     * Set the Sink to send warnings to, and errors if the {@link GEDCOM#OPTION_RECOVER} option is set.
+     * If not set, they are printed to System.out
+     * @param sink the sink, or null
+     */
+    public void setDiagnosticSink(Diagnostic.Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Set the ParseStatistics to add the statistics for this cursor to, when the end of the input is reached
+     * @param stats the statistics, or null to collect none
+     */
+    public void setStatistics(ParseStatistics stats) {
+        this.stats = stats;
+        if (stats != null && stattags == null) {
+            stattags = new LinkedHashMap<String,long[]>();
+        }
+    }
+
+    ParseStatistics getStatistics() {
+        return stats;
+    }
+
+    /**
+     * Move to the next record, returning false if there are no more
+     */
+    public boolean next() throws IOException {
+        if (!started) {
+            start();
+        }
+        while (haspending && pending.level > (hascur ? cur.level + 1 : 0)) {
+            String msg = "Invalid nesting from level " + (hascur ? cur.level : -1) + " to " + pending.level;
+            if (!flag_recover) {
+                fail(msg, Integer.MAX_VALUE, pending.line);
+            }
+            error(msg, Integer.MAX_VALUE, pending.line, pending.offset);
+            final int level = pending.level;
+            do {
+                skipLine();
+                haspending = readHeader(pending);
+            } while (haspending && pending.level > level);
+        }
+        if (!haspending) {
+            if (hascur && stats != null) {
+                flushStatistics();
+            }
+            hascur = false;
+            return false;
+        }
+        Token t = cur;
+        cur = pending;
+        pending = t;
+        hascur = true;
+        hasidref = false;
+        valuelen = 0;
+        checked = false;
+        tagString = idString = idrefString = valueString = null;
+        readValue(false);
+        if (cur.level == 0) {
+            inhead = isTag("HEAD");
+            ingedc = false;
+        } else if (cur.level == 1 && inhead) {
+            ingedc = isTag("GEDC");
+            if (isTag("CHAR")) {
+                String val = lineValue();
+                if ("UTF-8".equalsIgnoreCase(val)) {
+                    charset = CS_UTF8;
+                } else if ("ASCII".equalsIgnoreCase(val)) {
+                    charset = CS_ASCII;
+                } else if ("ANSEL".equalsIgnoreCase(val)) {
+                    charset = CS_ANSEL;
+                } else {
+                    warning("Ignoring unsupported charset \"" + val + "\"", cur.line);
+                }
+                if (majorversion >= 7 && charset != CS_UTF8) {
+                    invalid("Invalid charset in version 7 \"" + val + "\"");
+                }
+            }
+        } else if (cur.level == 2 && ingedc && isTag("VERS")) {
+            String val = lineValue();
+            if (val.startsWith("7.")) {
+                majorversion = 7;
+                if (charset != CS_UTF8) {
+                    invalid("Invalid charset in version 7");
+                }
+            } else if (val.startsWith("5.")) {
+                majorversion = 5;
+            }
+        }
+        if (flag_nlafternote && isTag("NOTE")) {
+            flag_insertnewline = true;
+        }
+        haspending = readHeader(pending);
+        while (haspending && !hasidref && pending.level == cur.level + 1 && (isTag(pending, "CONT") || (majorversion < 7 && isTag(pending, "CONC")))) {
+            if (flag_insertnewline || isTag(pending, "CONT")) {
+                append(0x0A);
+                flag_insertnewline = false;
+            }
+            if (stats != null) {
+                if (isTag(pending, "CONT")) {
+                    statcont++;
+                } else {
+                    statconc++;
+                }
+            }
+            readValue(true);
+            haspending = readHeader(pending);
+        }
+        if (stats != null) {
+            statrecords++;
+            statpeak = Math.max(statpeak, valuelen);
+            long[] count = stattags.get(tag());
+            if (count == null) {
+                stattags.put(tag(), count = new long[1]);
+            }
+            count[0]++;
+        }
+        return true;
+    }
+
+    /**
+     * Skip past all the descendants of the current record without decoding them, so the next call
+     * to {@link #next} moves to the record following this one at the same or a lower level.
+     * The HEAD record is always read in full, so the charset and version can be determined.
+     * After this call the values returned by the other methods are undefined until {@link #next} is called.
+     */
+    public void skipChildren() throws IOException {
+        if (!hascur) {
+            return;
+        }
+        final int level = cur.level;
+        if (inhead || flag_recover) {
+            while (haspending && pending.level > level) {
+                next();
+            }
+            return;
+        }
+        while (haspending && pending.level > level) {
+            skipLine();
+            while ((haspending = readLevel(pending)) && pending.level > level) {
+                skipLine();
+            }
+            if (haspending) {
+                readIdTag(pending);
+            }
+        }
+    }
+
+    /**
+     * Return the level of the current record
+     */
+    public int level() {
+        return cur.level;
+    }
+
+    /**
+     * Return the line number of the current record
+     */
+    public int getLineNumber() {
+        return cur.line;
+    }
+
+    /**
+     * Return the offset in bytes of the level number that begins the current record, from the
+     * point where this cursor started reading. Any whitespace and blank lines before it are
+     * skipped, so belong to the previous record
+     */
+    public long getOffset() {
+        return cur.offset;
+    }
+
+    /**
+     * Return the major version of the file being parsed (typically 5 or 7), as
+     * determined from the HEAD record so far
+     */
+    public int getMajorVersion() {
+        return majorversion;
+    }
+
+    /**
+     * Return true if the tag of the current record is the specified value.
+     * This does not allocate a String.
+     * @param tag the tag
+     */
+    public boolean isTag(String tag) {
+        return isTag(cur, tag);
+    }
+
+    /**
+     * Return the tag of the current record
+     */
+    public String tag() {
+        if (tagString == null) {
+            tagString = tags.get(cur.tag, 0, cur.taglen);
+        }
+        return tagString;
+    }
+
+    /**
+     * Return the id of the current record if it is indirect, or null
+     */
+    public String id() {
+        if (idString == null && cur.idlen >= 0) {
+            idString = new String(cur.id, 0, cur.idlen, StandardCharsets.ISO_8859_1);
+        }
+        return idString;
+    }
+
+    /**
+     * Return the id the current record points to if it is an idref, or null
+     */
+    public String idRef() {
+        if (idrefString == null && hasidref) {
+            idrefString = new String(idref, 0, idreflen, StandardCharsets.ISO_8859_1);
+        }
+        return idrefString;
+    }
+
+    /**
+     * Return the value of the current line, before any CONC/CONT lines are read.
+     * Used for CHAR and VERS in the header, which must take effect before the next line is read
+     */
+    private String lineValue() {
+        return new String(value, 0, valuelen, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Return the value of the current record as a String, or null if it is an idref
+     */
+    public String value() throws IOException {
+        if (valueString == null && !hasidref) {
+            long start = stats == null ? 0 : System.nanoTime();
+            int len = check();
+            if (len == 0) {
+                valueString = "";
+            } else if (ascii && values != null && len <= internlen) {
+                valueString = values.get(value, 0, len);
+            } else if (ascii || charset == CS_ASCII) {
+                valueString = new String(value, 0, len, StandardCharsets.ISO_8859_1);
+            } else if (charset == CS_UTF8) {
+                valueString = new String(value, 0, len, StandardCharsets.UTF_8);
+            } else {
+                valueString = new String(chars, 0, decode(len));
+            }
+            if (stats != null) {
+                statdecode += System.nanoTime() - start;
+            }
+        }
+        return valueString;
+    }
+
+    /**
+     * Return the value of the current record, or null if it is an idref. The returned
+     * CharSequence is reused, and is only valid until the next call to {@link #next}
+     */
+    public CharSequence valueAsCharSequence() throws IOException {
+        if (hasidref) {
+            return null;
+        }
+        long start = stats == null ? 0 : System.nanoTime();
+        int len = decode(check());
+        if (stats != null) {
+            statdecode += System.nanoTime() - start;
+        }
+        if (charbuf == null || charbuf.array() != chars) {
+            charbuf = CharBuffer.wrap(chars);
+        }
+        charbuf.clear();
+        charbuf.limit(len);
+        return charbuf;
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Tokenizing
+
+    /**
+     * Start this cursor with the options, charset and version of another,
+     * which has already read the HEAD. Used to parse a section of a file
+     * which starts after the HEAD
+     */
+    void inherit(GedcomCursor other) {
+        inherit(other.options, other.charset, other.majorversion);
+        sink = other.sink;
+        setStatistics(other.stats);
+    }
+
+    /**
+     * Take the options, charset and version from a previously read HEAD
+     */
+    void inherit(Map<String,String> options, int charset, int majorversion) {
+        this.options.putAll(options);
+        this.charset = charset;
+        this.majorversion = majorversion;
+        inherited = true;
+    }
+
+    /**
+     * Return the charset determined from the HEAD record so far, one of the CS_ constants
+     */
+    int getCharset() {
+        return charset;
+    }
+
+    /**
+     * Return an estimate of the number of bytes of memory saved so far by reusing
+     * the Strings returned from {@link #tag} and, if the {@link GEDCOM#OPTION_INTERN_VALUES}
+     * option is set, {@link #value}
+     */
+    public long getInternedBytes() {
+        return (tags == null ? 0 : tags.getBytesSaved()) + (values == null ? 0 : values.getBytesSaved());
+    }
+
+    /**
+     * Start reading again from a ByteBuffer, keeping the options, charset and version.
+     * Used to read one or more level-0 records at a time after the HEAD has been read.
+     * Only valid on a cursor created from a ByteBuffer.
+     * @param buf the buffer to read from, which must begin with a level-0 line
+     * @param line the number of lines before the start of the buffer
+     */
+    void restart(ByteBuffer buf, int line) {
+        src = buf.duplicate();
+        pos = limit = 0;
+        base = 0;
+        this.line = statline = line;
+        started = hascur = haspending = false;
+        inherited = true;
+    }
+
+    /**
+     * Return the line endings seen so far, a combination of the EOL_ constants
+     */
+    int getLineEndings() {
+        return endings;
+    }
+
+    /**
+     * Return the number of bytes read so far
+     */
+    long getBytesRead() {
+        return base + pos;
+    }
+
+    /**
+     * Return the number of line terminators read so far
+     */
+    int getLinesRead() {
+        return line;
+    }
+
+    private void start() throws IOException {
+        started = true;
+        if (!inherited) {
+            charset = CS_UTF8;
+            if ("ASCII".equalsIgnoreCase(options.get(GEDCOM.OPTION_DEFAULT_CHARSET))) {
+                charset = CS_ASCII;
+            } else if ("ANSEL".equalsIgnoreCase(options.get(GEDCOM.OPTION_DEFAULT_CHARSET))) {
+                charset = CS_ANSEL;
+            }
+            majorversion = 5;
+        }
+        flag_whitespace = options.containsKey(GEDCOM.OPTION_TOLERATE_WHITESPCE);
+        flag_nlafternote = options.containsKey(GEDCOM.OPTION_NL_AFTER_NOTE);
+        flag_recover = options.containsKey(GEDCOM.OPTION_RECOVER);
+        if (tags == null) {
+            tags = new Interner(4096, true);
+        }
+        if (values == null && options.containsKey(GEDCOM.OPTION_INTERN_VALUES)) {
+            try {
+                internlen = Integer.parseInt(options.get(GEDCOM.OPTION_INTERN_VALUES));
+            } catch (Exception e) {
+                internlen = 32;
+            }
+            values = new Interner(16384, false);
+        }
+        c = read();
+        if (c == 0xEF) {
+            if (read() != 0xBB || read() != 0xBF) {
+                if (!flag_recover) {
+                    throw new IOException("Invalid initial bytes, not a BOM or level");
+                }
+                error("Invalid initial bytes, not a BOM or level", Integer.MAX_VALUE, 1, 0);
+                skipLine();
+            } else {
+                c = read();
+            }
+        }
+        haspending = readHeader(pending);
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        if (in != null) {
+            n = in.read(buf, 0, buf.length);
+        } else {
+            if ((src == null || !src.hasRemaining()) && channel != null && mapped < channel.size()) {
+                long len = Math.min(MAPSIZE, channel.size() - mapped);
+                src = channel.map(FileChannel.MapMode.READ_ONLY, mapped, len);
+                mapped += len;
+            }
+            n = Math.min(buf.length, src == null ? 0 : src.remaining());
+            if (n > 0) {
+                src.get(buf, 0, n);
+            }
+        }
+        if (n <= 0) {
+            return false;
+        }
+        base += limit;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private boolean readHeader(Token t) throws IOException {
+        while (true) {
+            try {
+                if (readLevel(t)) {
+                    readIdTag(t);
+                    return true;
+                }
+                return false;
+            } catch (Resync e) {
+                skipLine();
+            }
+        }
+    }
+
+    /**
+     * Read the level and following space, returning false if we're at EOF
+     */
+    private boolean readLevel(Token t) throws IOException {
+        if (flag_whitespace || majorversion < 7) {  // not allowed in V7
+            while (true) {
+                while (c == 0x20) {
+                    c = read();
+                }
+                if (c == 0x0D) {
+                    c = read();
+                    if (c == 0x0A) {
+                        c = read();
+                        endings |= EOL_CRLF;
+                    } else {
+                        endings |= EOL_CR;
+                    }
+                    line++;
+                } else if (c == 0x0A) {
+                    c = read();
+                    endings |= EOL_LF;
+                    line++;
+                } else {
+                    break;
+                }
+            }
+        }
+        if (c < 0) {
+            return false;
+        }
+        t.line = line + 1;
+        t.offset = base + pos - 1;
+        int level = 0;
+        if (c >= '0' && c <= '9') {
+            level = c - '0';
+            while ((c = read()) >= '0' && c <= '9') {
+                level = level * 10 + c - '0';
+            }
+            if (c != ' ') {
+                fail("Expected space after level", c, line);
+            }
+            c = read();
+        } else {
+            fail("Expected level", c, line);
+        }
+        t.level = level;
+        return true;
+    }
+
+    /**
+     * Read the optional id and the tag, and the space following the tag
+     */
+    private void readIdTag(Token t) throws IOException {
+        t.idlen = -1;
+        t.taglen = 0;
+        if (c == '@') {
+            int len = 0;
+            while (((c = read()) >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_') {
+                if (len == t.id.length) {
+                    t.id = Arrays.copyOf(t.id, len * 2);
+                }
+                t.id[len++] = (byte)c;
+            }
+            if (c == '@') {
+                if (len == 0) {
+                    fail("Zero length id", Integer.MAX_VALUE, line);
+                } else if (len == 4 && t.id[0] == 'V' && t.id[1] == 'O' && t.id[2] == 'I' && t.id[3] == 'D') {
+                    fail("VOID id", Integer.MAX_VALUE, line);
+                }
+                t.idlen = len;
+                c = read();
+                if (c != ' ') {
+                    fail("Expected space after id", c, line);
+                }
+                c = read();
+            } else {
+                fail("Expected '@' after id", c, line);
+            }
+        }
+        if (c == '_' || (c >= 'A' && c <= 'Z')) {
+            int len = 0;
+            do {
+                if (len == t.tag.length) {
+                    t.tag = Arrays.copyOf(t.tag, len * 2);
+                }
+                t.tag[len++] = (byte)c;
+            } while (((c = read()) >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_');
+            if (c == ' ') {
+                c = read();
+            } else if (c != 0x0D && c != 0x0A && c >= 0) {
+                fail("Invalid tag character", c, line);
+            }
+            t.taglen = len;
+            if (len == 1 && t.tag[0] == '_') {
+                fail("Zero length tag", Integer.MAX_VALUE, line);
+            }
+        } else {
+            fail("Expected tag", c, line);
+        }
+    }
+
+    /**
+     * Read the value or idref that follows the tag, and the line terminator
+     * @param cont if true this line is a CONC/CONT, and any idref is ignored
+     */
+    private void readValue(boolean cont) throws IOException {
+        try {
+            readValueAndEndOfLine(cont);
+        } catch (Resync e) {
+            skipLine();
+        }
+    }
+
+    private void readValueAndEndOfLine(boolean cont) throws IOException {
+        if (c == 0x0D || c == 0x0A || c < 0) {
+            // No value;
+        } else if (c == '@') {
+            c = read();
+            if (c == '@') {
+                append(c);
+                c = read();
+                if (c == 0x09 || c >= 0x20) {
+                    readValueBytes(true);
+                }
+            } else {
+                int len = 0;
+                do {
+                    if (len == idref.length) {
+                        idref = Arrays.copyOf(idref, len * 2);
+                    }
+                    idref[len++] = (byte)c;
+                } while (((c = read()) >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_');
+                if (c != '@') {
+                    fail("Expected '@' after idref", c, line);
+                }
+                if (!cont) {
+                    idreflen = len;
+                    hasidref = true;
+                }
+                c = read();
+            }
+        } else if (c == 0x09 || c >= 0x20) {
+            readValueBytes(true);
+        } else {
+            fail("Expected value", c, line);
+        }
+        readEndOfLine();
+    }
+
+    private void readEndOfLine() throws IOException {
+        if (c == 0x0D) {
+            c = read();
+            if (c == 0x0A) {
+                c = read();
+                endings |= EOL_CRLF;
+            } else {
+                endings |= EOL_CR;
+            }
+            line++;
+        } else if (c == 0x0A) {
+            c = read();
+            endings |= EOL_LF;
+            line++;
+        } else if (c >= 0) {
+            fail("Invalid character in value", c, line);
+        }
+    }
+
+    /**
+     * Read value bytes, starting with the current byte, until
+     * a byte that isn't a tab or >= 0x20 is reached.
+     * @param keep whether to append the bytes to the value
+     */
+    private void readValueBytes(boolean keep) throws IOException {
+        int start = pos - 1;
+        while (true) {
+            while (pos < limit) {
+                if (pos + 8 <= limit && !hasControl(bufwords.getLong(pos))) {
+                    pos += 8;
+                    continue;
+                }
+                int b = buf[pos];
+                if (b >= 0x20 || b < 0 || b == 0x09) {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (keep) {
+                append(buf, start, pos - start);
+            }
+            if (pos < limit) {
+                c = buf[pos++] & 0xFF;
+                return;
+            } else if (!fill()) {
+                c = -1;
+                return;
+            }
+            start = 0;
+        }
+    }
+
+    /**
+     * Skip the rest of the current line, including the line terminator
+     */
+    private void skipLine() throws IOException {
+        while (c >= 0 && c != 0x0D && c != 0x0A) {
+            while (pos < limit) {
+                if (pos + 8 <= limit && !hasLineEnd(bufwords.getLong(pos))) {
+                    pos += 8;
+                    continue;
+                }
+                int b = buf[pos];
+                if (b == 0x0D || b == 0x0A) {
+                    break;
+                }
+                pos++;
+            }
+            c = read();
+        }
+        readEndOfLine();
+    }
+
+    private void append(int b) {
+        if (valuelen == value.length) {
+            value = Arrays.copyOf(value, valuelen * 2);
+            valuewords = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        value[valuelen++] = (byte)b;
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (valuelen + len > value.length) {
+            value = Arrays.copyOf(value, Math.max(valuelen + len, valuelen * 2));
+            valuewords = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        System.arraycopy(b, off, value, valuelen, len);
+        valuelen += len;
+    }
+
+    // The methods below test eight bytes at once, packed into a long. For each byte, subtracting
+    // 0x01 sets its top bit only if the byte was 0x00 (or borrowed from a lower byte that was),
+    // so "(x - 0x0101..) & ~x & 0x8080.." is non-zero if and only if one of the bytes is zero.
+
+    /**
+     * Return true if any of the eight bytes is less than 0x20, a control character or tab
+     */
+    private static boolean hasControl(long x) {
+        return ((x - 0x2020202020202020L) & ~x & 0x8080808080808080L) != 0;
+    }
+
+    /**
+     * Return true if any of the eight bytes is CR or LF
+     */
+    private static boolean hasLineEnd(long x) {
+        return (hasZero(x ^ 0x0D0D0D0D0D0D0D0DL) | hasZero(x ^ 0x0A0A0A0A0A0A0A0AL)) != 0;
+    }
+
+    /**
+     * Return true if all eight bytes are printable ASCII other than '@', so need no checking
+     */
+    private static boolean isPlain(long x) {
+        return (x & 0x8080808080808080L) == 0 && !hasControl(x) && (hasZero(x ^ 0x7F7F7F7F7F7F7F7FL) | hasZero(x ^ 0x4040404040404040L)) == 0;
+    }
+
+    private static long hasZero(long x) {
+        return (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+    }
+
+    private static boolean isTag(Token t, String tag) {
+        if (t.taglen != tag.length()) {
+            return false;
+        }
+        for (int i=0;i<t.taglen;i++) {
+            if (t.tag[i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Decoding
+
+    private static final String ANSEL;
+    static {
+        char[] c = new char[256];
+        for (int i=0;i<0x80;i++) {
+            c[i] = (char)i;
+        }
+        String q = "\u0141\u00D8\u0110\u00DE\u00C6\u0152\u02B9\u00B7\u266D\u00AE\u00B1\u01A0\u01AF\u02BC\u0000\u02BB\u0142\u00F8\u0111\u00FE\u00E6\u0153\u02BA\u0131\u00A3\u00F0\u0000\u01A1\u01B0\u25A1\u25A0\u00B0\u2113\u2117\u00A9\u266F\u00BF\u00A1\u0000\u20AC\u0000\u0000\u0000\u0000\u0065\u006F\u00DF\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0309\u0300\u0301\u0302\u0303\u0304\u0306\u0307\u0308\u030C\u030A\uFE20\uFE21\u0315\u030B\u0310\u0327\u0328\u0323\u0324\u0325\u0333\u0332\u0326\u031C\u032E\uFE22\uFE23\u0338\u0000\u0313\u0000"; // starts at 0xa1
+        for (int i=0xA1;i<0x100;i++) {
+            c[i] = q.charAt(i - 0xA1);
+        }
+        ANSEL = new String(c);
+    }
+
+    /**
+     * Check the value bytes for banned characters and invalid ANSEL codepoints, removing
+     * "@@" escapes in place, and return the new length. This is done on the bytes
+     * rather than the decoded chars so that value() can build the String in one step.
+     */
+    private int check() throws IOException {
+        if (checked) {
+            return valuelen;
+        }
+        final byte[] value = this.value;
+        final int len = valuelen;
+        final boolean v7 = majorversion >= 7;
+        boolean ascii = true;
+        int j = 0;
+        for (int i=0;i<len;i++) {
+            if (i == j && i + 8 <= len && isPlain(valuewords.getLong(i))) {
+                // Nothing to check or move
+                i += 7;
+                j += 8;
+                continue;
+            }
+            byte b = value[i];
+            if (b >= 0x20 && b < 0x7F) {
+                if (b == '@' && !v7 && i + 1 < len && value[i + 1] == '@') {
+                    i++;
+                }
+            } else if (b >= 0) {
+                if (b != 0x09 && b != 0x0A) {
+                    invalid("Banned character in value", b);
+                    continue;
+                }
+            } else {
+                ascii = false;
+                int c = b & 0xFF;
+                if (charset == CS_UTF8) {
+                    // U+0080-U+009F are C2 80-C2 9F, U+FEFF is EF BB BF
+                    if (c == 0xC2 && i + 1 < len && (value[i + 1] & 0xE0) == 0x80) {
+                        invalid("Banned character in value", value[++i] & 0xFF);
+                        continue;
+                    } else if (v7 && c == 0xEF && i + 2 < len && (value[i + 1] & 0xFF) == 0xBB && (value[i + 2] & 0xFF) == 0xBF) {
+                        invalid("Banned character in value", 0xFEFF);
+                        i += 2;
+                        continue;
+                    }
+                } else if (charset == CS_ANSEL) {
+                    if (ANSEL.charAt(c) == 0) {
+                        invalid("Invalid ANSEL codepoint 0x" + Integer.toHexString(c), Integer.MAX_VALUE);
+                        continue;
+                    }
+                } else if (c <= 0x9F) {
+                    invalid("Banned character in value", c);
+                    continue;
+                }
+            }
+            value[j++] = b;
+        }
+        this.ascii = ascii;
+        checked = true;
+        return valuelen = j;
+    }
+
+    /**
+     * Decode the first len checked value bytes into the chars array and return the number of chars
+     */
+    private int decode(int len) throws IOException {
+        if (chars.length < len) {
+            chars = new char[Math.max(len, chars.length * 2)];
+        }
+        final char[] chars = this.chars;
+        if (charset == CS_UTF8 && !ascii) {
+            if (decoder == null) {
+                decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            if (valuebuf == null || valuebuf.array() != value) {
+                valuebuf = ByteBuffer.wrap(value);
+            }
+            if (charbuf == null || charbuf.array() != chars) {
+                charbuf = CharBuffer.wrap(chars);
+            }
+            valuebuf.clear();
+            valuebuf.limit(len);
+            charbuf.clear();
+            decoder.reset();
+            decoder.decode(valuebuf, charbuf, true);
+            decoder.flush(charbuf);
+            return charbuf.position();
+        } else if (charset == CS_ANSEL) {
+            for (int i=0;i<len;i++) {
+                chars[i] = ANSEL.charAt(value[i] & 0xFF);
+            }
+        } else {
+            for (int i=0;i<len;i++) {
+                chars[i] = (char)(value[i] & 0xFF);
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Add the statistics collected since the cursor started to the ParseStatistics, and reset them
+     */
+    private void flushStatistics() {
+        stats.addCursor(base + pos, line - statline, statrecords, statconc, statcont, statdecode, statpeak, stattags);
+        statrecords = statconc = statcont = statdecode = 0;
+        statpeak = 0;
+        stattags.clear();
+    }
+
+    void warning(String msg, int line) throws IOException {
+        report(new Diagnostic(Diagnostic.Kind.Warning, msg, line, -1, -2));
+    }
+
+    private void error(String msg, int c, int line, long offset) {
+        report(new Diagnostic(Diagnostic.Kind.Error, msg, line, offset, c == Integer.MAX_VALUE ? -2 : c));
+    }
+
+    private void report(Diagnostic d) {
+        if (sink != null) {
+            sink.add(d);
+        } else {
+            System.out.println(d);
+        }
+    }
+
+    /**
+     * Fail because of a problem with the current value. When recovering from errors
+     * the problem is reported and this method returns, and the caller should skip the problem
+     */
+    private void invalid(String msg, int c) throws IOException {
+        if (!flag_recover) {
+            fail(msg, c, cur.line);
+        }
+        error(msg, c, cur.line, cur.offset);
+    }
+
+    private void invalid(String msg) throws IOException {
+        if (!flag_recover) {
+            throw new IOException(msg);
+        }
+        error(msg, Integer.MAX_VALUE, cur.line, cur.offset);
+    }
+
+    /**
+     * Fail because of a problem reading the current line. When recovering from errors
+     * the problem is reported and the rest of the line is skipped
+     */
+    void fail(String msg, int c, int line) throws IOException {
+        if (flag_recover) {
+            error(msg, c, line, base + pos - 1);
+            throw RESYNC;
+        }
+        if (c >= 0x20 && c <= 0x7e) {
+            msg += " (got '" + ((char)c) + "')";
+        } else if (c < 0) {
+            msg += " (got EOF)";
+        } else if (c < Integer.MAX_VALUE) {
+            msg += " (got 0x" + Integer.toHexString(c) + ")";
+        }
+        throw new IOException(msg + " (line " + line + ")");
+    }
+
+}
@@ -0,0 +1,37 @@
+package gedcomj;
+
+import java.io.*;
+
+/**
+ * A callback interface for reading GEDCOM as a stream of events, without building
+ * a tree of {@link Record} objects. Pass an implementation to {@link GedcomParser#parse}.
+ * For every line (other than CONC/CONT lines, which are joined into the value of the record
+ * they continue) {@link #startRecord} is called, followed by {@link #value} if the record is
+ * not an idref, then any child records, then {@link #endRecord}.
+ */
+public interface GedcomHandler {
+
+    /**
+     * Called when a record starts
+     * @param level the level of the record, 0 for a top-level record
+     * @param id the id of the record if its indirect, or null
+     * @param tag the tag of the record
+     * @param idref if the record points to another record, the id it points to, otherwise null
+     */
+    void startRecord(int level, String id, String tag, String idref) throws IOException;
+
+    /**
+     * Called once for each record that isn't an idref with its value, after any CONC/CONT lines
+     * have been joined. The value may be an empty string but is never null.
+     * @param value the value
+     */
+    void value(String value) throws IOException;
+
+    /**
+     * Called when a record ends, after all its children have ended
+     * @param level the level of the record
+     * @param tag the tag of the record
+     */
+    void endRecord(int level, String tag) throws IOException;
+
+}
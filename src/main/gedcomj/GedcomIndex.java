@@ -0,0 +1,371 @@
+package gedcomj;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * An index of the level-0 records in a GEDCOM file, which can be saved next to the file
+ * (typically as "file.ged.idx") and loaded again, so the file doesn't have to be scanned.
+ * For each level-0 record the index stores its byte offset, line number, tag and id, and it
+ * also stores the number of records with each tag. The index records the length, modification
+ * time and a checksum of the first and last 64KB of the file it was made from, and is
+ * ignored if these don't match or if the index is corrupt, which is checked with a CRC of its contents.
+ * <p>
+ * An index is written and used by {@link GEDCOM#read(Path)} when the {@link GEDCOM#OPTION_INDEX}
+ * option is set. It can also be used on its own, to find a record without loading the GEDCOM:
+ * </p>
+ * <pre>
+ * GedcomIndex index = GedcomIndex.read(path, Paths.get(path + ".idx"));
+ * if (index != null &amp;&amp; index.getOffset("I12345") &gt;= 0) {
+ *     FileChannel channel = FileChannel.open(path);
+ *     channel.position(index.getOffset("I12345"));
+ *     GedcomCursor cursor = new GedcomCursor(channel);
+ *     cursor.next();      // the "0 @I12345@ INDI" line
+ * }
+ * </pre>
+ * The charset and version are set by the HEAD record, so a cursor started part way through
+ * a file will assume UTF-8 and version 5.
+ */
+public class GedcomIndex {
+
+    private static final int MAGIC = 0x47494458;       // "GIDX"
+    private static final int VERSION = 3;
+    private static final int SAMPLE = 65536;
+
+    private long length, modified, checksum;
+    private int charset, majorversion;
+    private String options = "";
+    private int size;
+    private long[] offsets = new long[1024];
+    private int[] lines = new int[1024];
+    private String[] tags = new String[1024], ids = new String[1024], idrefs = new String[1024];
+    private final Map<String,Integer> tagcounts = new LinkedHashMap<String,Integer>();
+    private Map<String,Integer> idindex;
+
+    GedcomIndex() {
+    }
+
+    /**
+     * Load an index, returning null if it doesn't exist, can't be read, or doesn't match the source file
+     * @param source the GEDCOM file the index was made from
+     * @param index the index file
+     */
+    public static GedcomIndex read(Path source, Path index) throws IOException {
+        if (!Files.isReadable(index)) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            return read(source, channel, index, null);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Load an index as for {@link #read(Path,Path)}, but if the options are not null also return
+     * null if they differ from the options the index was written with in a way that affects it
+     */
+    static GedcomIndex read(Path source, FileChannel channel, Path index, Map<String,String> options) throws IOException {
+        if (!Files.isReadable(index)) {
+            return null;
+        }
+        CheckedInputStream cin = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(index)), new CRC32());
+        DataInputStream in = new DataInputStream(cin);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            GedcomIndex idx = new GedcomIndex();
+            idx.length = in.readLong();
+            idx.modified = in.readLong();
+            idx.checksum = in.readLong();
+            if (idx.length != channel.size() || idx.modified != Files.getLastModifiedTime(source).toMillis() || idx.checksum != checksum(channel)) {
+                return null;
+            }
+            idx.charset = in.readInt();
+            idx.majorversion = in.readInt();
+            idx.options = in.readUTF();
+            if (options != null && !idx.options.equals(optionKey(options))) {
+                return null;
+            }
+            long maxsize = Files.size(index);      // every entry takes at least one byte
+            int tagcount = in.readInt();
+            if (tagcount < 0 || tagcount > maxsize) {
+                return null;
+            }
+            String[] tagtable = new String[tagcount];
+            for (int i=0;i<tagtable.length;i++) {
+                tagtable[i] = in.readUTF();
+                idx.tagcounts.put(tagtable[i], in.readInt());
+            }
+            int size = in.readInt();
+            if (size < 0 || size > maxsize) {
+                return null;
+            }
+            idx.offsets = new long[size];
+            idx.lines = new int[size];
+            idx.tags = new String[size];
+            idx.ids = new String[size];
+            idx.idrefs = new String[size];
+            long offset = 0;
+            int line = 0;
+            for (int i=0;i<size;i++) {
+                idx.offsets[i] = offset += readVarint(in);
+                idx.lines[i] = line += (int)readVarint(in);
+                long tag = readVarint(in);
+                if (offset < 0 || offset >= idx.length || (i > 0 && offset <= idx.offsets[i - 1]) || line <= 0 || tag < 0 || tag >= tagtable.length) {
+                    return null;
+                }
+                idx.tags[i] = tagtable[(int)tag];
+                int flags = in.readByte();
+                idx.ids[i] = (flags & 1) != 0 ? in.readUTF() : null;
+                idx.idrefs[i] = (flags & 2) != 0 ? in.readUTF() : null;
+            }
+            long crc = cin.getChecksum().getValue();
+            if (in.readLong() != crc) {
+                return null;
+            }
+            idx.size = size;
+            return idx;
+        } catch (IOException e) {
+            return null;        // truncated or corrupt, so treat it as stale
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the index to the specified file. The file is written to a temporary file first
+     * then moved into place, so it can be read by another process while it is written
+     * @param index the index file
+     */
+    public void write(Path index) throws IOException {
+        Path tmp = GEDCOM.createTempFile(index);
+        boolean done = false;
+        try {
+            CheckedOutputStream cout = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), new CRC32());
+            DataOutputStream out = new DataOutputStream(cout);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(length);
+                out.writeLong(modified);
+                out.writeLong(checksum);
+                out.writeInt(charset);
+                out.writeInt(majorversion);
+                out.writeUTF(this.options);
+                Map<String,Integer> tagtable = new HashMap<String,Integer>();
+                out.writeInt(tagcounts.size());
+                for (Map.Entry<String,Integer> e : tagcounts.entrySet()) {
+                    tagtable.put(e.getKey(), tagtable.size());
+                    out.writeUTF(e.getKey());
+                    out.writeInt(e.getValue());
+                }
+                out.writeInt(size);
+                long offset = 0;
+                int line = 0;
+                for (int i=0;i<size;i++) {
+                    writeVarint(out, offsets[i] - offset);
+                    writeVarint(out, lines[i] - line);
+                    writeVarint(out, tagtable.get(tags[i]));
+                    out.writeByte((ids[i] != null ? 1 : 0) | (idrefs[i] != null ? 2 : 0));
+                    if (ids[i] != null) {
+                        out.writeUTF(ids[i]);
+                    }
+                    if (idrefs[i] != null) {
+                        out.writeUTF(idrefs[i]);
+                    }
+                    offset = offsets[i];
+                    line = lines[i];
+                }
+                out.writeLong(cout.getChecksum().getValue());
+            } finally {
+                out.close();
+            }
+            Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * Return the number of level-0 records in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return a read-only map of the number of level-0 records with each tag, in the order they first occur
+     */
+    public Map<String,Integer> getTagCounts() {
+        return Collections.<String,Integer>unmodifiableMap(tagcounts);
+    }
+
+    /**
+     * Return the byte offset in the file of the level-0 record with the specified id, or -1 if not found
+     * @param id the id, without the surrounding '@' characters
+     */
+    public long getOffset(String id) {
+        int i = find(id);
+        return i < 0 ? -1 : offsets[i];
+    }
+
+    /**
+     * Return the line number in the file of the level-0 record with the specified id, or 0 if not found
+     * @param id the id, without the surrounding '@' characters
+     */
+    public int getLineNumber(String id) {
+        int i = find(id);
+        return i < 0 ? 0 : lines[i];
+    }
+
+    private int find(String id) {
+        if (idindex == null) {
+            Map<String,Integer> m = new HashMap<String,Integer>(size * 2);
+            for (int i=0;i<size;i++) {
+                if (ids[i] != null) {
+                    m.put(ids[i], i);
+                }
+            }
+            idindex = m;
+        }
+        Integer i = idindex.get(id);
+        return i == null ? -1 : i;
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Used by GEDCOM
+
+    /**
+     * Start a new index for the specified file
+     */
+    void start(Path source, FileChannel channel, Map<String,String> options) throws IOException {
+        this.options = optionKey(options);
+        length = channel.size();
+        modified = Files.getLastModifiedTime(source).toMillis();
+        checksum = checksum(channel);
+    }
+
+    void add(long offset, int line, String tag, String id, String idref) {
+        if (size == offsets.length) {
+            int len = size * 2;
+            offsets = Arrays.copyOf(offsets, len);
+            lines = Arrays.copyOf(lines, len);
+            tags = Arrays.copyOf(tags, len);
+            ids = Arrays.copyOf(ids, len);
+            idrefs = Arrays.copyOf(idrefs, len);
+        }
+        offsets[size] = offset;
+        lines[size] = line;
+        tags[size] = tag;
+        ids[size] = id;
+        idrefs[size] = idref;
+        size++;
+        Integer count = tagcounts.get(tag);
+        tagcounts.put(tag, count == null ? 1 : count + 1);
+    }
+
+    void setHead(int charset, int majorversion) {
+        this.charset = charset;
+        this.majorversion = majorversion;
+    }
+
+    int getCharset() {
+        return charset;
+    }
+
+    int getMajorVersion() {
+        return majorversion;
+    }
+
+    long getOffset(int i) {
+        return offsets[i];
+    }
+
+    int getLineNumber(int i) {
+        return lines[i];
+    }
+
+    String getTag(int i) {
+        return tags[i];
+    }
+
+    String getId(int i) {
+        return ids[i];
+    }
+
+    String getIdRef(int i) {
+        return idrefs[i];
+    }
+
+    /**
+     * Return a CRC32 of the first and last 64KB of the channel
+     */
+    /**
+     * Return a string describing the options which change how the level-0 records are read:
+     * the default charset, which is cached in the index, and those that change which lines are skipped
+     */
+    private static String optionKey(Map<String,String> options) {
+        String v = options.get(GEDCOM.OPTION_DEFAULT_CHARSET);
+        StringBuilder sb = new StringBuilder();
+        sb.append(v == null ? "" : v.toUpperCase());
+        if (options.containsKey(GEDCOM.OPTION_TOLERATE_WHITESPCE)) {
+            sb.append(" " + GEDCOM.OPTION_TOLERATE_WHITESPCE);
+        }
+        if (options.containsKey(GEDCOM.OPTION_RECOVER)) {
+            sb.append(" " + GEDCOM.OPTION_RECOVER);
+        }
+        return sb.toString();
+    }
+
+    private static long checksum(FileChannel channel) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = channel.size();
+        ByteBuffer buf = ByteBuffer.allocate((int)Math.min(SAMPLE, size));
+        update(crc, channel, buf, 0);
+        if (size > SAMPLE) {
+            update(crc, channel, buf, Math.max(SAMPLE, size - SAMPLE));
+        }
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        buf.clear();
+        int n;
+        while (buf.hasRemaining() && (n = channel.read(buf, pos)) > 0) {
+            pos += n;
+        }
+        crc.update(buf.array(), 0, buf.position());
+    }
+
+    private static void writeVarint(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    private static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift=0;;shift+=7) {
+            int b = in.readByte();
+            v |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package gedcomj;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A streaming GEDCOM parser, which tokenizes the input and reports it to a {@link GedcomHandler}.
+ * Memory use is independent of the size of the file, as no tree is built. The file is
+ * tokenized by a {@link GedcomCursor}, so CONC/CONT lines are joined and the charset
+ * and version are taken from the HEAD record as they are read.
+ * This is the parser used by {@link GEDCOM#read}.
+ * <pre>
+ * GedcomParser parser = new GedcomParser();
+ * parser.parse(in, new GedcomHandler() {
+ *     public void startRecord(int level, String id, String tag, String idref) {
+ *         if (level == 0 &amp;&amp; tag.equals("INDI")) {
+ *             count++;
+ *         }
+ *     }
+ *     public void value(String value) { }
+ *     public void endRecord(int level, String tag) { }
+ * });
+ * </pre>
+ */
+public class GedcomParser {
+
+    private final Map<String,String> options = new HashMap<String,String>();
+    private GedcomCursor cursor;
+    private Diagnostic.Sink sink;
+    private ParseStatistics stats;
+
+    public GedcomParser() {
+    }
+
+    /**
+     * Get a Map which can contain various options to control parsing,
+     * the same as {@link GEDCOM#getOptions}
+     */
+    public Map<String,String> getOptions() {
+        return options;
+    }
+
+    /**
+     * Set the Sink to send warnings to, and errors if the {@link GEDCOM#OPTION_RECOVER} option is set,
+     * when parsing from an InputStream. If not set, they are printed to System.out
+     * @param sink the sink, or null
+     */
+    public void setDiagnosticSink(Diagnostic.Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Set the ParseStatistics to collect statistics in when parsing from an InputStream.
+     * It is not reset first.
+     * @param stats the statistics, or null to collect none
+     */
+    public void setStatistics(ParseStatistics stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Return the line number of the record most recently reported
+     * to {@link GedcomHandler#startRecord}
+     */
+    public int getLineNumber() {
+        return cursor == null ? 0 : cursor.getLineNumber();
+    }
+
+    /**
+     * Return the offset in bytes of the record most recently reported
+     * to {@link GedcomHandler#startRecord}, from the start of the input
+     */
+    long getOffset() {
+        return cursor == null ? 0 : cursor.getOffset();
+    }
+
+    /**
+     * Return the major version of the file being parsed (typically 5 or 7), as
+     * determined from the HEAD record so far
+     */
+    public int getMajorVersion() {
+        return cursor == null ? 0 : cursor.getMajorVersion();
+    }
+
+    /**
+     * Return an estimate of the number of bytes of memory saved so far by reusing
+     * the Strings for repeated tags and values, as described in {@link GedcomCursor#getInternedBytes}
+     */
+    public long getInternedBytes() {
+        return cursor == null ? 0 : cursor.getInternedBytes();
+    }
+
+    /**
+     * Parse the GEDCOM from the specified InputStream, reporting records to the handler
+     * @param in the InputStream
+     * @param handler the handler
+     */
+    public void parse(InputStream in, GedcomHandler handler) throws IOException {
+        GedcomCursor cursor = new GedcomCursor(in);
+        cursor.getOptions().putAll(options);
+        cursor.setDiagnosticSink(sink);
+        cursor.setStatistics(stats);
+        parse(cursor, handler);
+    }
+
+    /**
+     * Parse the GEDCOM from the specified GedcomCursor, which must not have had
+     * {@link GedcomCursor#next} called on it, reporting records to the handler.
+     * The options on the cursor are used rather than the options on this object
+     * @param cursor the GedcomCursor
+     * @param handler the handler
+     */
+    public void parse(GedcomCursor cursor, GedcomHandler handler) throws IOException {
+        this.cursor = cursor;
+        TimedHandler timed = null;
+        if (cursor.getStatistics() != null) {
+            handler = timed = new TimedHandler(handler, cursor.getStatistics());
+        }
+        String[] tags = new String[8];  // tags of the currently open records
+        int depth = 0;                  // the number of currently open records
+        while (cursor.next()) {
+            int level = cursor.level();
+            while (depth > level) {
+                depth--;
+                handler.endRecord(depth, tags[depth]);
+                tags[depth] = null;
+            }
+            if (depth == tags.length) {
+                tags = Arrays.copyOf(tags, depth * 2);
+            }
+            String tag = cursor.tag();
+            String idref = cursor.idRef();
+            tags[depth++] = tag;
+            handler.startRecord(level, cursor.id(), tag, idref);
+            if (idref == null) {
+                handler.value(cursor.value());
+            }
+        }
+        while (depth > 0) {
+            depth--;
+            handler.endRecord(depth, tags[depth]);
+            tags[depth] = null;
+        }
+        if (timed != null) {
+            timed.flush();
+        }
+    }
+
+    void warning(String msg, int line) throws IOException {
+        cursor.warning(msg, line);
+    }
+
+    /**
+     * A GedcomHandler which measures the time spent in another handler, and adds it
+     * to a ParseStatistics when {@link #flush} is called at the end of the input
+     */
+    private static class TimedHandler implements GedcomHandler {
+        private final GedcomHandler handler;
+        private final ParseStatistics stats;
+        private long time;
+
+        TimedHandler(GedcomHandler handler, ParseStatistics stats) {
+            this.handler = handler;
+            this.stats = stats;
+        }
+
+        @Override public void startRecord(int level, String id, String tag, String idref) throws IOException {
+            long start = System.nanoTime();
+            handler.startRecord(level, id, tag, idref);
+            time += System.nanoTime() - start;
+        }
+
+        @Override public void value(String value) throws IOException {
+            long start = System.nanoTime();
+            handler.value(value);
+            time += System.nanoTime() - start;
+        }
+
+        @Override public void endRecord(int level, String tag) throws IOException {
+            long start = System.nanoTime();
+            handler.endRecord(level, tag);
+            time += System.nanoTime() - start;
+        }
+
+        void flush() {
+            stats.addHandlerTime(time);
+            time = 0;
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package gedcomj;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * An incremental GEDCOM parser, which is given the file in chunks as they arrive rather than
+ * reading from a stream, so it never blocks. Bytes are collected until a line beginning with "0 "
+ * is seen, then everything before that line is parsed and reported to the {@link GedcomHandler},
+ * so state such as the charset and any UTF-8 sequence split between chunks is carried over.
+ * Parsing only happens at the start of a level-0 record, as a record and its CONC/CONT lines
+ * must be parsed together, so the bytes of each level-0 record are held in memory until the
+ * next one begins: the memory used is proportional to the largest level-0 record, not the file.
+ * <pre>
+ * GedcomPushParser parser = new GedcomPushParser(handler);
+ * // as each buffer arrives
+ * parser.feed(buf);
+ * // at the end of the input
+ * parser.complete();
+ * </pre>
+ * Use {@link GEDCOM#newPushParser} to load a GEDCOM this way, in which case {@link #close}
+ * must be called if the input is abandoned before {@link #complete} is called.
+ */
+public class GedcomPushParser implements Closeable {
+
+    private final Map<String,String> options = new HashMap<String,String>();
+    final GedcomParser parser = new GedcomParser();
+    GedcomHandler handler;
+    GEDCOM gedcom;              // if not null, the GEDCOM whose bulk change ends when parsing does
+    private GedcomCursor cursor;
+    private Diagnostic.Sink sink;
+    private ByteBuffer readbuf;
+    private byte[] buf = new byte[65536];
+    private int len;            // the number of bytes in buf
+    private int scanned;        // the number of bytes in buf checked for a level-0 line
+    private int boundary;       // the start of the last level-0 line found in buf, or 0
+    private int lines;          // the number of lines parsed so far
+    private boolean complete;
+
+    /**
+     * Create a new GedcomPushParser
+     * @param handler the handler to report records to
+     */
+    public GedcomPushParser(GedcomHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Get a Map which can contain various options to control parsing,
+     * the same as {@link GEDCOM#getOptions}. Options must be set
+     * before the first call to {@link #feed}
+     */
+    public Map<String,String> getOptions() {
+        return options;
+    }
+
+    /**
+     * Set the Sink to send warnings to, and errors if the {@link GEDCOM#OPTION_RECOVER} option is set.
+     * If not set, they are printed to System.out
+     * @param sink the sink, or null
+     */
+    public void setDiagnosticSink(Diagnostic.Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Return the line number of the record most recently reported
+     * to {@link GedcomHandler#startRecord}
+     */
+    public int getLineNumber() {
+        return parser.getLineNumber();
+    }
+
+    /**
+     * Add the remaining bytes in the buffer to the input, and parse whatever can be parsed.
+     * The buffer is not retained, so can be reused once this method returns.
+     * @param in the buffer, which will be read from its position to its limit
+     */
+    public void feed(ByteBuffer in) throws IOException {
+        if (complete) {
+            throw new IllegalStateException("Already complete");
+        }
+        int n = in.remaining();
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+        }
+        in.get(buf, len, n);
+        len += n;
+        final byte[] buf = this.buf;
+        for (int i=scanned;i+2<len;i++) {
+            if ((buf[i] == 0x0A || buf[i] == 0x0D) && buf[i + 1] == '0' && buf[i + 2] == ' ') {
+                boundary = i + 1;
+            }
+        }
+        scanned = Math.max(scanned, len - 2);
+        if (boundary > 0) {
+            parse(boundary);
+        }
+    }
+
+    /**
+     * Read whatever bytes are available from the channel and pass them to {@link #feed},
+     * calling {@link #complete} if the end of the channel is reached. A non-blocking
+     * channel can be read this way each time it is selected as readable.
+     * @param channel the channel to read from
+     * @return false if the end of the channel was reached, true otherwise
+     */
+    public boolean read(ReadableByteChannel channel) throws IOException {
+        if (readbuf == null) {
+            readbuf = ByteBuffer.allocate(65536);
+        }
+        int n;
+        while ((n = channel.read(readbuf)) > 0) {
+            readbuf.flip();
+            feed(readbuf);
+            readbuf.clear();
+        }
+        if (n < 0) {
+            complete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Signal the end of the input, and parse anything remaining
+     */
+    public void complete() throws IOException {
+        if (!complete) {
+            complete = true;
+            if (len > 0) {
+                parse(len);
+            }
+            end(null);
+        }
+    }
+
+    /**
+     * Stop without parsing anything remaining. If this parser was returned by
+     * {@link GEDCOM#newPushParser}, this ends the bulk change the GEDCOM is in while it
+     * is loaded, leaving the records parsed so far. Does nothing if already complete
+     */
+    @Override public void close() {
+        if (!complete) {
+            complete = true;
+            len = 0;
+            end(null);
+        }
+    }
+
+    /**
+     * Parse the first end bytes of buf, which must end at the start of a line
+     */
+    private void parse(int end) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(buf, 0, end);
+        if (cursor == null) {
+            cursor = new GedcomCursor(b);
+            cursor.getOptions().putAll(options);
+            cursor.setDiagnosticSink(sink);
+        } else {
+            cursor.restart(b, lines);
+        }
+        try {
+            parser.parse(cursor, handler);
+        } catch (IOException e) {
+            end(e);
+            throw e;
+        } catch (RuntimeException e) {
+            end(e);
+            throw e;
+        }
+        lines = cursor.getLinesRead();
+        System.arraycopy(buf, end, buf, 0, len - end);
+        len -= end;
+        scanned -= end;
+        boundary = 0;
+    }
+
+    /**
+     * End the bulk change on the GEDCOM being loaded, if there is one
+     */
+    private void end(Throwable failure) {
+        if (gedcom != null) {
+            GEDCOM gedcom = this.gedcom;
+            this.gedcom = null;
+            gedcom.endBulk(failure);
+        }
+    }
+
+}
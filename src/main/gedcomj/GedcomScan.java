@@ -0,0 +1,194 @@
+package gedcomj;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A quick scan of a GEDCOM file, which reads the HEAD record in full but only the first line of
+ * every other level-0 record. No other Records are created and no other values decoded, so it runs
+ * much faster than {@link GEDCOM#read} and uses very little memory. It is intended for checking
+ * what a file contains before deciding whether to load it.
+ * <pre>
+ * GedcomScan scan = new GedcomScan();
+ * scan.read(path);
+ * if (scan.getMajorVersion() == 5 &amp;&amp; "ANSEL".equals(scan.getCharset())) {
+ *     System.out.println(scan.getTagCounts().get("INDI") + " individuals");
+ * }
+ * </pre>
+ * Only the level-0 lines are checked for errors; anything below them is skipped unparsed.
+ */
+public class GedcomScan {
+
+    private final Map<String,String> options = new HashMap<String,String>();
+    private final Map<String,Integer> tagcounts = new LinkedHashMap<String,Integer>();
+    private final List<String> ids = new ArrayList<String>();
+    private Diagnostic.Sink sink;
+    private GEDCOM gedcom;
+    private String charset;
+    private int majorversion, endings, lines;
+    private long bytes;
+
+    /**
+     * Get a Map which can contain various options to control parsing,
+     * the same as {@link GEDCOM#getOptions}
+     */
+    public Map<String,String> getOptions() {
+        return options;
+    }
+
+    /**
+     * Set the Sink to send warnings to, and errors if the {@link GEDCOM#OPTION_RECOVER} option is set.
+     * If not set, they are printed to System.out
+     * @param sink the sink, or null
+     */
+    public void setDiagnosticSink(Diagnostic.Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Scan a GEDCOM from the specified InputStream. The results of any previous scan are discarded
+     * @param in the InputStream
+     */
+    public void read(InputStream in) throws IOException {
+        read(new GedcomCursor(new BufferedInputStream(in)));
+    }
+
+    /**
+     * Scan a GEDCOM from the specified file. The results of any previous scan are discarded
+     * @param path the file
+     */
+    public void read(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            read(new GedcomCursor(channel));
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void read(GedcomCursor cursor) throws IOException {
+        cursor.getOptions().putAll(options);
+        cursor.setDiagnosticSink(sink);
+        tagcounts.clear();
+        ids.clear();
+        gedcom = new GEDCOM();
+        Record[] stack = new Record[8];
+        while (cursor.next()) {
+            final int level = cursor.level();
+            final String tag = cursor.tag();
+            if (level == 0) {
+                Integer count = tagcounts.get(tag);
+                tagcounts.put(tag, count == null ? 1 : count + 1);
+                if (cursor.id() != null) {
+                    ids.add(cursor.id());
+                }
+                if (!tag.equals("HEAD") || gedcom.getHeader() != null) {
+                    cursor.skipChildren();
+                    continue;
+                }
+            }
+            Record r = gedcom.newRecord(tag, null);
+            r.setLineNumber(cursor.getLineNumber());
+            if (cursor.idRef() != null) {
+                r.setIdRef(cursor.idRef());
+            } else {
+                String value = cursor.value();
+                if (value.length() > 0) {
+                    r.setValue(value);
+                }
+            }
+            if (level == 0) {
+                gedcom.getRecords().add(r);
+            } else {
+                stack[level - 1].getRecords().add(r);
+            }
+            if (level == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[level] = r;
+        }
+        switch (cursor.getCharset()) {
+            case GedcomCursor.CS_ASCII: charset = "ASCII"; break;
+            case GedcomCursor.CS_ANSEL: charset = "ANSEL"; break;
+            default: charset = "UTF-8";
+        }
+        majorversion = cursor.getMajorVersion();
+        endings = cursor.getLineEndings();
+        lines = cursor.getLinesRead();
+        bytes = cursor.getBytesRead();
+    }
+
+    /**
+     * Return the HEAD record, which is in a GEDCOM of its own, or null if there wasn't one
+     */
+    public Header getHeader() {
+        return gedcom == null ? null : gedcom.getHeader();
+    }
+
+    /**
+     * Return the charset used to decode the file, "UTF-8", "ASCII" or "ANSEL"
+     */
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * Return the major version of the file, typically 5 or 7
+     */
+    public int getMajorVersion() {
+        return majorversion;
+    }
+
+    /**
+     * Return the full version from the HEAD record, eg "5.5.1", or null if not specified
+     */
+    public String getVersion() {
+        Header header = getHeader();
+        return header == null ? null : header.getVersion();
+    }
+
+    /**
+     * Return the line endings used in the file, "LF", "CRLF", "CR", "mixed" if
+     * more than one style is used, or null if there were no line endings
+     */
+    public String getLineEnding() {
+        switch (endings) {
+            case 0: return null;
+            case GedcomCursor.EOL_LF: return "LF";
+            case GedcomCursor.EOL_CRLF: return "CRLF";
+            case GedcomCursor.EOL_CR: return "CR";
+            default: return "mixed";
+        }
+    }
+
+    /**
+     * Return a read-only map of the number of level-0 records with each tag, in the order they first occur
+     */
+    public Map<String,Integer> getTagCounts() {
+        return Collections.<String,Integer>unmodifiableMap(tagcounts);
+    }
+
+    /**
+     * Return a read-only list of the ids of the level-0 records, in the order they occur
+     */
+    public List<String> getIds() {
+        return Collections.<String>unmodifiableList(ids);
+    }
+
+    /**
+     * Return the number of lines in the file
+     */
+    public int getLineCount() {
+        return lines;
+    }
+
+    /**
+     * Return the number of bytes in the file
+     */
+    public long getByteCount() {
+        return bytes;
+    }
+
+}
@@ -0,0 +1,399 @@
+package gedcomj;
+
+import java.io.*;
+
+/**
+ * Writes GEDCOM to an OutputStream one record at a time, so large files can be produced without
+ * building a tree of Records first. Values are split onto CONT lines at each newline and, for
+ * version 5, onto CONC lines so no line is longer than 90 bytes, exactly as {@link GEDCOM#write} does.
+ * The output is always UTF-8.
+ * <pre>
+ * GedcomWriter writer = new GedcomWriter(out, "5.5.1");
+ * writer.begin(0, "I1", "INDI");
+ * writer.begin(1, null, "NAME");
+ * writer.value("John /Smith/");
+ * writer.end();
+ * writer.begin(1, null, "FAMS");
+ * writer.ref("F1");
+ * writer.end();
+ * writer.end();
+ * writer.finish();
+ * </pre>
+ * If the first record isn't a HEAD, a minimal one is written for the version. If it is, a CHAR
+ * record is added to it if missing or changed to "UTF-8" for version 5. The TRLR record is
+ * written by {@link #finish}; a TRLR passed to {@link #begin} is ignored, but no more level-0
+ * records may be begun after it.
+ */
+public class GedcomWriter {
+
+    private final OutputStream out;
+    private final String version;
+    private final int majorversion, maxlength;
+    private final byte[] buf = new byte[65536];
+    private byte[] value = new byte[256];
+    private int pos;
+    private long flushed;
+    private long linestart;     // the position of the start of the current line
+    private int linelevel;      // the level of the current line
+    private int depth;          // the number of records begun but not ended
+    private int skip = -1;      // if not -1, the depth of a TRLR being ignored
+    private boolean hasline, hasvalue, started, finished, trailer, inhead, headchar, ischar;
+
+    /**
+     * Create a new GedcomWriter
+     * @param out the OutputStream to write to
+     * @param version the GEDCOM version being written, eg "5.5.1" or "7.0"
+     */
+    public GedcomWriter(OutputStream out, String version) {
+        this(out, version, majorVersion(version));
+    }
+
+    GedcomWriter(OutputStream out, String version, int majorversion) {
+        this.out = out;
+        this.version = version;
+        this.majorversion = majorversion;
+        this.maxlength = majorversion <= 5 ? 90 : Integer.MAX_VALUE;
+    }
+
+    private static int majorVersion(String s) {
+        if (s != null && s.length() > 0) {
+            char c = s.charAt(0);
+            if (c >= '1' && c <= '9' && (s.length() == 1 || s.charAt(1) == '.')) {
+                return c - '0';
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Begin a record. It must be followed by any call to {@link #value} or {@link #ref},
+     * then any child records, then a call to {@link #end}
+     * @param level the level of the record, which must be the number of records begun but not ended
+     * @param id the id, or null
+     * @param tag the tag
+     */
+    public void begin(int level, String id, String tag) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Already finished");
+        }
+        if (tag == null) {
+            throw new IllegalArgumentException("Tag is null");
+        }
+        if (level != depth) {
+            throw new IllegalStateException("Expected level " + depth + ", got " + level);
+        }
+        if (level == 0 && trailer) {
+            throw new IllegalStateException("Record \"" + tag + "\" after TRLR");
+        }
+        depth++;
+        if (skip >= 0) {
+            return;
+        }
+        if (level == 0) {
+            if (!started) {
+                started = true;
+                if (!tag.equals("HEAD")) {
+                    writeHeader();
+                }
+            }
+            if (tag.equals("TRLR")) {
+                trailer = true;
+                skip = level;
+                return;
+            }
+            inhead = tag.equals("HEAD");
+        }
+        ischar = level == 1 && inhead && majorversion <= 5 && tag.equals("CHAR");
+        headchar |= ischar;
+        line(level, id, tag);
+        if (ischar) {
+            value("UTF-8");
+        }
+    }
+
+    /**
+     * Set the value of the current record. It will be split over CONT and CONC lines as required.
+     * @param value the value, which may be null
+     */
+    public void value(CharSequence value) throws IOException {
+        if (skip >= 0) {
+            return;
+        }
+        if (!hasline || hasvalue) {
+            if (ischar) {
+                return;         // already set to UTF-8
+            }
+            throw new IllegalStateException("The value or ref must follow begin");
+        }
+        hasvalue = true;
+        if (value == null || value.length() == 0) {
+            return;
+        }
+        int len = (int)(position() - linestart);
+        final int n = encode(value);
+        final byte[] b = this.value;
+        if (n > 0) {
+            put(' ');
+            len++;
+        }
+        final int level = linelevel + 1;
+        int i = 0;
+        while (i < n) {
+            int v = b[i] & 0xFF;
+            if (v == 0x0D) {
+                i++;
+                continue;
+            } else if (v == 0x0A) {
+                put(0x0A);
+                long start = position();
+                putInt(level);
+                put(" CONT");
+                len = (int)(position() - start);
+                i++;
+                if (!(i == n || b[i] == 0x0A)) {
+                    put(' ');
+                }
+                continue;
+            } else if (len + width(v) >= maxlength) {
+                put(0x0A);
+                long start = position();
+                putInt(level);
+                put(" CONC ");
+                len = (int)(position() - start);
+            }
+            // Copy as many bytes as possible in one go
+            int start = i++;
+            len++;
+            while (i < n && (v = b[i] & 0xFF) != 0x0D && v != 0x0A && len + width(v) < maxlength) {
+                i++;
+                len++;
+            }
+            put(b, start, i - start);
+        }
+    }
+
+    /**
+     * Set the current record to be a pointer to another record, rather than having a value
+     * @param idref the id of the record to point to
+     */
+    public void ref(String idref) throws IOException {
+        if (skip >= 0) {
+            return;
+        }
+        if (!hasline || hasvalue) {
+            throw new IllegalStateException("The value or ref must follow begin");
+        }
+        if (idref == null) {
+            throw new IllegalArgumentException("IdRef is null");
+        }
+        hasvalue = true;
+        put(' ');
+        put('@');
+        putString(idref);
+        put('@');
+    }
+
+    /**
+     * End the record most recently begun
+     */
+    public void end() throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("No record to end");
+        }
+        depth--;
+        if (skip >= 0) {
+            if (depth == skip) {
+                skip = -1;
+            }
+            return;
+        }
+        endLine();
+        if (depth == 0 && inhead) {
+            if (!headchar && majorversion <= 5) {
+                line(1, null, "CHAR");
+                value("UTF-8");
+                endLine();
+            }
+            inhead = false;
+        }
+    }
+
+    /**
+     * End any records not yet ended, write the TRLR record and flush the OutputStream,
+     * which is not closed. No more records can be written after this
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        while (depth > 0) {
+            end();
+        }
+        if (!started) {
+            started = true;
+            writeHeader();
+        }
+        line(0, null, "TRLR");
+        endLine();
+        flush();
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Write a minimal HEAD record for the version
+     */
+    private void writeHeader() throws IOException {
+        line(0, null, "HEAD");
+        endLine();
+        line(1, null, "GEDC");
+        endLine();
+        line(2, null, "VERS");
+        value(version);
+        endLine();
+        if (majorversion <= 5) {
+            line(2, null, "FORM");
+            value("LINEAGE-LINKED");
+            endLine();
+            line(1, null, "CHAR");
+            value("UTF-8");
+            endLine();
+        }
+    }
+
+    /**
+     * Start a new line, ending the previous one
+     */
+    private void line(int level, String id, String tag) throws IOException {
+        endLine();
+        linestart = position();
+        linelevel = level;
+        putInt(level);
+        put(' ');
+        if (id != null) {
+            put('@');
+            putString(id);
+            put('@');
+            put(' ');
+        }
+        putString(tag);
+        hasline = true;
+        hasvalue = false;
+    }
+
+    private void endLine() throws IOException {
+        if (hasline) {
+            put(0x0A);
+            hasline = false;
+        }
+    }
+
+    /**
+     * Mark the HEAD as already written, so this writer can encode a run of
+     * level-0 records to be joined to the output of another
+     */
+    void setFragment() {
+        started = true;
+    }
+
+    /**
+     * Write any buffered bytes to the OutputStream, without flushing it
+     */
+    void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            flushed += pos;
+            pos = 0;
+        }
+    }
+
+    /**
+     * Return the number of bytes written so far
+     */
+    long position() {
+        return flushed + pos;
+    }
+
+    /**
+     * The number of bytes in the UTF-8 sequence starting with this byte, as
+     * used to decide where to split with CONC
+     */
+    private static int width(int v) {
+        return v < 0xC0 ? 1 : v < 0xDF ? 2 : v < 0xEF ? 3 : 4;
+    }
+
+    private void put(int b) throws IOException {
+        if (pos == buf.length) {
+            flush();
+        }
+        buf[pos++] = (byte)b;
+    }
+
+    private void put(String s) throws IOException {
+        for (int i=0;i<s.length();i++) {
+            put(s.charAt(i));
+        }
+    }
+
+    private void put(byte[] b, int off, int len) throws IOException {
+        if (pos + len > buf.length) {
+            flush();
+            if (len > buf.length) {
+                out.write(b, off, len);
+                flushed += len;
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+    }
+
+    private void putInt(int v) throws IOException {
+        if (v >= 10) {
+            putInt(v / 10);
+        }
+        put('0' + (v % 10));
+    }
+
+    private void putString(String s) throws IOException {
+        put(value, 0, encode(s));
+    }
+
+    /**
+     * Encode the chars as UTF-8 into value and return the number of bytes. As
+     * for String.getBytes, unpaired surrogates are encoded as '?'
+     */
+    private int encode(CharSequence s) {
+        final int len = s.length();
+        if (value.length < len * 3) {
+            value = new byte[Math.max(len * 3, value.length * 2)];
+        }
+        final byte[] value = this.value;
+        int j = 0;
+        for (int i=0;i<len;i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                value[j++] = (byte)c;
+            } else if (c < 0x800) {
+                value[j++] = (byte)(0xC0 | (c >> 6));
+                value[j++] = (byte)(0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    value[j++] = (byte)(0xF0 | (cp >> 18));
+                    value[j++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                    value[j++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                    value[j++] = (byte)(0x80 | (cp & 0x3F));
+                } else {
+                    value[j++] = '?';
+                }
+            } else {
+                value[j++] = (byte)(0xE0 | (c >> 12));
+                value[j++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                value[j++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        return j;
+    }
+
+}
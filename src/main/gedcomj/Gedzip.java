@@ -0,0 +1,201 @@
+package gedcomj;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A GEDZIP archive, as defined by GEDCOM 7: a zip file containing the dataset as "gedcom.ged"
+ * and any media files it refers to. Entries are opened only when asked for, and an entry stored
+ * without compression is memory-mapped rather than read.
+ */
+class Gedzip {
+
+    static final String DATASET = "gedcom.ged";
+
+    private final Path path;
+    private Map<String,long[]> stored;  // the local header offset and size of each uncompressed entry
+
+    Gedzip(Path path) {
+        this.path = path;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Return true if the bytes are the start of a zip file
+     */
+    static boolean isZip(byte[] head, int len) {
+        return len >= 4 && head[0] == 'P' && head[1] == 'K' && head[2] == 3 && head[3] == 4;
+    }
+
+    /**
+     * Return true if the bytes are the start of a gzip stream
+     */
+    static boolean isGzip(byte[] head, int len) {
+        return len >= 2 && (head[0] & 0xFF) == 0x1F && (head[1] & 0xFF) == 0x8B;
+    }
+
+    /**
+     * Return the name of the entry for a FILE value. The value is a URI, so is
+     * percent-decoded; if it isn't a valid URI it's used as-is
+     */
+    static String getEntryName(String file) {
+        try {
+            URI uri = new URI(file);
+            if (uri.getScheme() == null && uri.getPath() != null) {
+                return uri.getPath();
+            }
+        } catch (URISyntaxException e) { }
+        return file;
+    }
+
+    /**
+     * Open the named entry, returning null if it doesn't exist. The archive is
+     * opened for each call and closed when the stream is closed
+     */
+    InputStream open(String name) throws IOException {
+        final ZipFile zip = new ZipFile(path.toFile());
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null || entry.isDirectory()) {
+            zip.close();
+            return null;
+        }
+        return new FilterInputStream(zip.getInputStream(entry)) {
+            @Override public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    zip.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Map the named entry into memory, returning null if it doesn't
+     * exist or is compressed
+     */
+    ByteBuffer map(String name) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (stored == null) {
+                stored = readDirectory(channel);
+            }
+            long[] entry = stored.get(name);
+            if (entry == null) {
+                return null;
+            }
+            final long offset = entry[0];
+            ByteBuffer buf = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+            while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) > 0);
+            if (buf.hasRemaining() || buf.getInt(0) != 0x04034b50) {
+                throw new ZipException("Invalid local header for \"" + name + "\"");
+            }
+            long start = offset + 30 + (buf.getShort(26) & 0xFFFF) + (buf.getShort(28) & 0xFFFF);
+            if (start + entry[1] > channel.size()) {
+                throw new ZipException("Truncated entry \"" + name + "\"");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, entry[1]);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Copy the named entry to a ZipOutputStream, keeping its compression method,
+     * returning false if it doesn't exist
+     */
+    boolean copy(String name, ZipOutputStream out) throws IOException {
+        ZipFile zip = new ZipFile(path.toFile());
+        try {
+            ZipEntry entry = zip.getEntry(name);
+            if (entry == null || entry.isDirectory()) {
+                return false;
+            }
+            ZipEntry e = new ZipEntry(name);
+            if (entry.getMethod() == ZipEntry.STORED) {
+                e.setMethod(ZipEntry.STORED);
+                e.setSize(entry.getSize());
+                e.setCompressedSize(entry.getSize());
+                e.setCrc(entry.getCrc());
+            }
+            if (entry.getLastModifiedTime() != null) {
+                e.setLastModifiedTime(entry.getLastModifiedTime());
+            }
+            out.putNextEntry(e);
+            InputStream in = zip.getInputStream(entry);
+            try {
+                byte[] buf = new byte[65536];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            out.closeEntry();
+            return true;
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Read the central directory and return the local header offset and size of each uncompressed
+     * entry. The size is taken from here as the local header may not have it. Zip64 entries
+     * are left out, so will be read with {@link #open} rather than mapped.
+     */
+    private static Map<String,long[]> readDirectory(FileChannel channel) throws IOException {
+        Map<String,long[]> map = new HashMap<String,long[]>();
+        long size = channel.size();
+        int taillen = (int)Math.min(size, 65535 + 22);
+        ByteBuffer tail = ByteBuffer.allocate(taillen).order(ByteOrder.LITTLE_ENDIAN);
+        while (tail.hasRemaining() && channel.read(tail, size - taillen + tail.position()) > 0);
+        int eocd = -1;
+        for (int i=taillen-22;i>=0;i--) {
+            if (tail.getInt(i) == 0x06054b50) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            return map;
+        }
+        long cdlen = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long cdoff = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (cdoff + cdlen > size || cdlen > Integer.MAX_VALUE) {
+            return map;
+        }
+        ByteBuffer cd = ByteBuffer.allocate((int)cdlen).order(ByteOrder.LITTLE_ENDIAN);
+        while (cd.hasRemaining() && channel.read(cd, cdoff + cd.position()) > 0);
+        final byte[] b = cd.array();
+        int i = 0;
+        while (i + 46 <= cd.position() && cd.getInt(i) == 0x02014b50) {
+            int flags = cd.getShort(i + 8) & 0xFFFF;
+            int method = cd.getShort(i + 10) & 0xFFFF;
+            long len = cd.getInt(i + 24) & 0xFFFFFFFFL;
+            int namelen = cd.getShort(i + 28) & 0xFFFF;
+            int extralen = cd.getShort(i + 30) & 0xFFFF;
+            int commentlen = cd.getShort(i + 32) & 0xFFFF;
+            long offset = cd.getInt(i + 42) & 0xFFFFFFFFL;
+            if (i + 46 + namelen + extralen + commentlen > cd.position()) {
+                throw new ZipException("Invalid central directory");
+            }
+            String name = new String(b, i + 46, namelen, (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+            if (method == ZipEntry.STORED && len != 0xFFFFFFFFL && offset != 0xFFFFFFFFL) {
+                map.put(name, new long[] { offset, len });
+            }
+            i += 46 + namelen + extralen + commentlen;
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,107 @@
+package gedcomj;
+
+import java.nio.charset.*;
+
+/**
+ * A bounded table of Strings keyed on their ISO-8859-1 bytes, so repeated tags and
+ * values can be looked up without creating a new String each time. Not thread-safe;
+ * each {@link GedcomCursor} has its own.
+ */
+class Interner {
+
+    /**
+     * The tags defined in GEDCOM 5.5.1 and 7.0, used to seed the tag table
+     */
+    private static final String[] TAGS = {
+        "ABBR", "ADDR", "ADOP", "ADR1", "ADR2", "ADR3", "AFN", "AGE", "AGNC", "ALIA",
+        "ANCE", "ANCI", "ANUL", "ASSO", "AUTH", "BAPL", "BAPM", "BARM", "BASM", "BIRT",
+        "BLES", "BURI", "CALN", "CAST", "CAUS", "CENS", "CHAN", "CHAR", "CHIL", "CHR",
+        "CHRA", "CITY", "CONC", "CONF", "CONL", "CONT", "COPR", "CORP", "CREA", "CREM",
+        "CROP", "CTRY", "DATA", "DATE", "DEAT", "DESC", "DESI", "DEST", "DIV", "DIVF",
+        "DSCR", "EDUC", "EMAIL", "EMAI", "EMIG", "ENDL", "ENGA", "EVEN", "EXID", "FACT",
+        "FAM", "FAMC", "FAMS", "FAX", "FCOM", "FILE", "FONE", "FORM", "GEDC", "GIVN",
+        "GRAD", "HEAD", "HEIGHT", "HUSB", "IDNO", "IMMI", "INDI", "INIL", "LANG", "LATI",
+        "LEFT", "LONG", "MAP", "MARB", "MARC", "MARL", "MARR", "MARS", "MEDI", "MIME",
+        "NAME", "NATI", "NATU", "NCHI", "NICK", "NMR", "NO", "NOTE", "NPFX", "NSFX",
+        "OBJE", "OCCU", "ORDI", "ORDN", "PAGE", "PEDI", "PHON", "PHRASE", "PLAC", "POST",
+        "PROB", "PROP", "PUBL", "QUAY", "REFN", "RELA", "RELI", "REPO", "RESI", "RESN",
+        "RETI", "RFN", "RIN", "ROLE", "ROMN", "SCHMA", "SDATE", "SEX", "SLGC", "SLGS",
+        "SNOTE", "SOUR", "SPFX", "SSN", "STAE", "STAT", "SUBM", "SUBN", "SURN", "TAG",
+        "TEMP", "TEXT", "TIME", "TITL", "TOP", "TRAN", "TRLR", "TYPE", "UID", "VERS",
+        "WIDTH", "WIFE", "WILL", "WWW", "_UID"
+    };
+
+    private final int max;
+    private final byte[][] keys;
+    private final String[] values;
+    private int size;
+    private long saved;
+
+    /**
+     * Create a new Interner
+     * @param max the maximum number of Strings to store
+     * @param seed if true, seed the table with the standard GEDCOM tags
+     */
+    Interner(int max, boolean seed) {
+        this.max = max;
+        int cap = Integer.highestOneBit(Math.max(max, 8) * 2 - 1) << 1;
+        keys = new byte[cap][];
+        values = new String[cap];
+        if (seed) {
+            for (int i=0;i<TAGS.length;i++) {
+                byte[] b = TAGS[i].getBytes(StandardCharsets.ISO_8859_1);
+                get(b, 0, b.length);
+            }
+            saved = 0;
+        }
+    }
+
+    /**
+     * Return the String for the specified ISO-8859-1 bytes, adding it to the table
+     * if it's not there and the table isn't full.
+     */
+    String get(byte[] buf, int off, int len) {
+        int h = 0;
+        for (int i=0;i<len;i++) {
+            h = h * 31 + buf[off + i];
+        }
+        h ^= h >>> 16;
+        final int mask = keys.length - 1;
+        for (int i=h&mask;;i=(i+1)&mask) {
+            byte[] key = keys[i];
+            if (key == null) {
+                String s = new String(buf, off, len, StandardCharsets.ISO_8859_1);
+                if (size < max) {
+                    byte[] k = new byte[len];
+                    System.arraycopy(buf, off, k, 0, len);
+                    keys[i] = k;
+                    values[i] = s;
+                    size++;
+                }
+                return s;
+            } else if (key.length == len && equals(key, buf, off, len)) {
+                // A String with a compact byte[] is about 24 + 16 bytes plus the data, padded to 8
+                saved += 40 + ((len + 7) & ~7);
+                return values[i];
+            }
+        }
+    }
+
+    /**
+     * Return an estimate of the number of bytes saved by returning an existing
+     * String rather than creating a new one
+     */
+    long getBytesSaved() {
+        return saved;
+    }
+
+    private static boolean equals(byte[] key, byte[] buf, int off, int len) {
+        for (int i=0;i<len;i++) {
+            if (key[i] != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
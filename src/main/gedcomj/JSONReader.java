@@ -0,0 +1,339 @@
+package gedcomj;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Reads the JSON written by {@link GEDCOM#writeJSON}, creating Records directly from the
+ * UTF-8 bytes without building a tree of Maps and Lists first. Each object has "tag", "id",
+ * "value", "idref" and "records" keys; any other keys are skipped. Not thread-safe.
+ */
+class JSONReader {
+
+    private final GEDCOM gedcom;
+    private final InputStream in;
+    private final ByteBuffer src;
+    private final byte[] buf;
+    private int pos, limit;
+    private long base;                  // the offset of buf[0] from the start of the input
+    private char[] chars = new char[256];
+    private final Interner tags = new Interner(1024, true);
+
+    /**
+     * Create a JSONReader to read from an InputStream
+     */
+    JSONReader(GEDCOM gedcom, InputStream in) {
+        this.gedcom = gedcom;
+        this.in = in;
+        this.src = null;
+        this.buf = new byte[65536];
+    }
+
+    /**
+     * Create a JSONReader to read from the buffer's position to its limit
+     */
+    JSONReader(GEDCOM gedcom, ByteBuffer src) {
+        this.gedcom = gedcom;
+        this.in = null;
+        this.src = src;
+        this.buf = new byte[(int)Math.min(65536, Math.max(16, src.remaining()))];
+    }
+
+    /**
+     * Read an array of records, adding each to the list as it is read
+     */
+    void readArray(List<Record> out) throws IOException {
+        int c = skipSpace(read());
+        if (c == 0xEF && read() == 0xBB && read() == 0xBF) {
+            c = skipSpace(read());
+        }
+        if (c != '[') {
+            throw fail("expecting start-list", c);
+        }
+        c = skipSpace(read());
+        if (c != ']') {
+            while (true) {
+                out.add(readRecord(c));
+                c = skipSpace(read());
+                if (c == ']') {
+                    break;
+                } else if (c != ',') {
+                    throw fail("expecting comma or end-list", c);
+                }
+                c = skipSpace(read());
+            }
+        }
+    }
+
+    /**
+     * Read the next record, skipping any whitespace before it,
+     * or return null if there are no more
+     */
+    Record readRecord() throws IOException {
+        int c = skipSpace(read());
+        if (c == 0xEF && base + pos == 1 && read() == 0xBB && read() == 0xBF) {
+            c = skipSpace(read());
+        }
+        return c < 0 ? null : readRecord(c);
+    }
+
+    /**
+     * Read a record, having read the first byte
+     */
+    private Record readRecord(int c) throws IOException {
+        if (c != '{') {
+            throw fail("expecting start-map", c);
+        }
+        String tag = null, id = null, value = null, idref = null;
+        Record r = null;
+        List<Record> kids = null;      // if the records come before the tag
+        c = skipSpace(read());
+        if (c != '}') {
+            while (true) {
+                if (c != '"') {
+                    throw fail("expected string", c);
+                }
+                String key = readString(false);
+                c = skipSpace(read());
+                if (c != ':') {
+                    throw fail("expecting colon", c);
+                }
+                c = skipSpace(read());
+                if (key.equals("tag")) {
+                    tag = readStringValue(c, true);
+                } else if (key.equals("id")) {
+                    id = readStringValue(c, false);
+                } else if (key.equals("value")) {
+                    value = readStringValue(c, false);
+                } else if (key.equals("idref")) {
+                    idref = readStringValue(c, false);
+                } else if (key.equals("records") && c == '[') {
+                    if (r == null && tag != null) {
+                        r = gedcom.newRecord(tag, null);
+                    }
+                    List<Record> l = r != null ? r.getRecords() : (kids = new ArrayList<Record>());
+                    c = skipSpace(read());
+                    if (c != ']') {
+                        while (true) {
+                            l.add(readRecord(c));
+                            c = skipSpace(read());
+                            if (c == ']') {
+                                break;
+                            } else if (c != ',') {
+                                throw fail("expecting comma or end-list", c);
+                            }
+                            c = skipSpace(read());
+                        }
+                    }
+                } else {
+                    skipValue(c);
+                }
+                c = skipSpace(read());
+                if (c == '}') {
+                    break;
+                } else if (c != ',') {
+                    throw fail("expecting comma or end-map", c);
+                }
+                c = skipSpace(read());
+            }
+        }
+        if (r == null) {
+            r = gedcom.newRecord(tag, null);
+        }
+        if (id != null) {
+            r.setId(id);
+        }
+        if (idref != null) {
+            r.setIdRef(idref);
+        } else if (value != null) {
+            r.setValue(value);
+        }
+        if (kids != null) {
+            r.getRecords().addAll(kids);
+        }
+        return r;
+    }
+
+    /**
+     * Read a string or null, having read the first byte
+     */
+    private String readStringValue(int c, boolean intern) throws IOException {
+        if (c == '"') {
+            return readString(intern);
+        } else if (c == 'n' && read() == 'u' && read() == 'l' && read() == 'l') {
+            return null;
+        }
+        throw fail("expected string", c);
+    }
+
+    /**
+     * Read a string, having read the opening quote. If intern is set, plain ASCII
+     * strings in the buffer are looked up in the table of tags
+     */
+    private String readString(boolean intern) throws IOException {
+        // Fast path: the whole string is in the buffer and is ASCII with no escapes
+        final byte[] buf = this.buf;
+        int i = pos;
+        while (i < limit) {
+            int b = buf[i];
+            if (b == '"') {
+                String s = intern ? tags.get(buf, pos, i - pos) : new String(buf, pos, i - pos, StandardCharsets.ISO_8859_1);
+                pos = i + 1;
+                return s;
+            } else if (b < 0x20 || b == '\\') {
+                break;
+            }
+            i++;
+        }
+        int len = 0;
+        int c;
+        while ((c = read()) != '"') {
+            if (len + 2 > chars.length) {
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+            if (c < 0) {
+                throw fail("unexpected EOF", c);
+            } else if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'u':
+                        c = 0;
+                        for (int j=0;j<4;j++) {
+                            int d = Character.digit(read(), 16);
+                            if (d < 0) {
+                                throw fail("invalid escape", -2);
+                            }
+                            c = (c << 4) | d;
+                        }
+                        break;
+                    case -1: throw fail("unexpected EOF", c);
+                }
+                chars[len++] = (char)c;
+            } else if (c < 0x80) {
+                chars[len++] = (char)c;
+            } else {
+                // Decode UTF-8, replacing anything malformed with U+FFFD
+                int n = c >= 0xF5 ? -1 : c >= 0xF0 ? 3 : c >= 0xE0 ? 2 : c >= 0xC2 ? 1 : -1;
+                int cp = n == 3 ? c & 0x07 : n == 2 ? c & 0x0F : c & 0x1F;
+                for (int j=0;j<n;j++) {
+                    int d = peek();
+                    if ((d & 0xC0) != 0x80) {
+                        n = -1;
+                        break;
+                    }
+                    pos++;
+                    cp = (cp << 6) | (d & 0x3F);
+                }
+                if (n < 0 || (n == 2 && (cp < 0x800 || Character.isSurrogate((char)cp))) || (n == 3 && (cp < 0x10000 || cp > 0x10FFFF))) {
+                    chars[len++] = '\uFFFD';
+                } else if (cp >= 0x10000) {
+                    chars[len++] = Character.highSurrogate(cp);
+                    chars[len++] = Character.lowSurrogate(cp);
+                } else {
+                    chars[len++] = (char)cp;
+                }
+            }
+        }
+        return new String(chars, 0, len);
+    }
+
+    /**
+     * Skip any JSON value, having read the first byte
+     */
+    private void skipValue(int c) throws IOException {
+        if (c == '"') {
+            readString(false);
+        } else if (c == '{' || c == '[') {
+            final int end = c == '{' ? '}' : ']';
+            c = skipSpace(read());
+            if (c != end) {
+                while (true) {
+                    if (end == '}') {
+                        if (c != '"') {
+                            throw fail("expected string", c);
+                        }
+                        readString(false);
+                        c = skipSpace(read());
+                        if (c != ':') {
+                            throw fail("expecting colon", c);
+                        }
+                        c = skipSpace(read());
+                    }
+                    skipValue(c);
+                    c = skipSpace(read());
+                    if (c == end) {
+                        break;
+                    } else if (c != ',') {
+                        throw fail(end == '}' ? "expecting comma or end-map" : "expecting comma or end-list", c);
+                    }
+                    c = skipSpace(read());
+                }
+            }
+        } else if (c == '-' || (c >= '0' && c <= '9') || c == 't' || c == 'f' || c == 'n') {
+            // Numbers and literals are not checked, just skipped
+            while ((c = peek()) == '.' || c == '-' || c == '+' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                pos++;
+            }
+        } else {
+            throw fail("invalid", c);
+        }
+    }
+
+    private int skipSpace(int c) throws IOException {
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = read();
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        if (in != null) {
+            n = in.read(buf, 0, buf.length);
+        } else {
+            n = Math.min(buf.length, src.remaining());
+            if (n > 0) {
+                src.get(buf, 0, n);
+            }
+        }
+        if (n <= 0) {
+            return false;
+        }
+        base += limit;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private IllegalArgumentException fail(String msg, int c) {
+        long offset = base + pos - 1;
+        if (c == -1) {
+            return new IllegalArgumentException("Parse failed: unexpected EOF");
+        } else if (c >= 0x20 && c < 0x7F) {
+            msg = "invalid '" + ((char)c) + "' " + msg;
+        }
+        return new IllegalArgumentException("Parse failed at " + offset + ": " + msg);
+    }
+
+}
@@ -16,7 +16,7 @@ public class Main {
             List<String> notestnames = new ArrayList<String>();
             Collection<Verifier.Severity> fixes = new HashSet<Verifier.Severity>();
             Map<String,String> options = new HashMap<String,String>();
-            boolean json = false, fixprompt = false, verify = false, quiet = false;
+            boolean json = false, jsonl = false, fixprompt = false, verify = false, quiet = false, stats = false;
 
             for (int i=0;i<args.length;i++) {
                 String s = args[i];
@@ -38,6 +38,8 @@ public class Main {
                     verify = true;
                 } else if (s.equals("--quiet") && !quiet) {
                     quiet = true;
+                } else if (s.equals("--stats") && !stats) {
+                    stats = true;
                 } else if (s.equals("--fix-trivial")) {
                     fixes.add(Verifier.Severity.Trivial);
                 } else if (s.equals("--fix-restructure")) {
@@ -52,6 +54,8 @@ public class Main {
                     quiet = true;
                 } else if (s.equals("--json") && !json) {
                     json = true;
+                } else if (s.equals("--jsonl") && !json) {
+                    json = jsonl = true;
                 } else if (s.equals("--ztemplate") && template == null && i + 1 < args.length) {
                     template = args[++i];
                 } else {
@@ -76,19 +80,25 @@ public class Main {
             if (!quiet) {
                 System.err.print("Reading " + (infile.equals("-") ? "STDIN" : "\"" + infile + "\"") + "...");
             }
-            InputStream in = null;
-            try {
-                in = infile.equals("-") ? System.in : new FileInputStream(infile);
-            } catch (IOException e) {
-                System.err.println("failed");
-                e.printStackTrace(System.err);
-                return;
-            }
-
             GEDCOM gedcom = new GEDCOM();
             gedcom.getOptions().putAll(options);
-            gedcom.read(in);
+            ParseStatistics statistics = stats ? new ParseStatistics() : null;
+            gedcom.setStatistics(statistics);
+            if (infile.equals("-")) {
+                gedcom.read(System.in);
+            } else {
+                File f = new File(infile);
+                if (!f.canRead()) {
+                    System.err.println("failed");
+                    System.err.println("Can't read \"" + infile + "\"");
+                    return;
+                }
+                gedcom.read(f.toPath());
+            }
             System.err.println(" " + gedcom.getRecords().size() + " record");
+            if (statistics != null) {
+                System.err.println(statistics);
+            }
 
             if (verify) {
                 Verifier verifier = new Verifier();
@@ -202,13 +212,28 @@ public class Main {
                         System.err.println("Writing " + count + " people records... ");
                     }
                     if (json && outfile.equals("-")) {
-                        System.out.println(gedcom.toString());
+                        if (jsonl) {
+                            gedcom.writeJSONLines((OutputStream)System.out);
+                        } else {
+                            gedcom.writeJSON((OutputStream)System.out, false);
+                            System.out.println();
+                        }
+                    } else if (!json && outfile.endsWith(".gdz")) {
+                        gedcom.writeGedzip(new File(outfile).toPath());
+                    } else if (!json && !outfile.equals("-")) {
+                        gedcom.write(new File(outfile).toPath());      // copies unchanged records from the input
                     } else {
                         OutputStream out = outfile.equals("-") ? System.out : new BufferedOutputStream(new FileOutputStream(outfile));
-                        if (json) {
-                            Writer w = new OutputStreamWriter(out, "UTF-8");
-                            w.write(gedcom.toString());
-                            w.close();
+                        if (jsonl) {
+                            gedcom.writeJSONLines(out);
+                            if (out != System.out) {
+                                out.close();
+                            }
+                        } else if (json) {
+                            gedcom.writeJSON(out, false);
+                            if (out != System.out) {
+                                out.close();
+                            }
                         } else {
                             gedcom.write(out);
                             if (out != System.out) {
@@ -233,9 +258,12 @@ public class Main {
         System.err.println("Usage: java -jar gedcom-" + version + "-all.jar <args>");
         System.err.println();
         System.err.println("  --input <file|->        the source for the GEDCOM (filename or - for stdin). Required");
-        System.err.println("  --output <file|->       the output to write to (filename or - for stdin)");
+        System.err.println("  --output <file|->       the output to write to (filename or - for stdin). A filename");
+        System.err.println("                          ending in \".gdz\" is written as a GEDZIP archive");
         System.err.println("  --quiet                 don't print information to stderr");
+        System.err.println("  --stats                 print statistics about the parse to stderr");
         System.err.println("  --json                  write to the output file in JSON format");
+        System.err.println("  --jsonl                 write to the output file in JSON Lines format, one level-0 record per line");
         System.err.println("  --template <ztemplate>  write to the output file using a ZTemplate");
         System.err.println("  --filter <file|zpath>   a ZPath expression to filter the output, or if the value is a filename");
         System.err.println("                          read the ZPath expressions from that file, one per line. Repeatable.");
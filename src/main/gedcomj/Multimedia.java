@@ -1,5 +1,7 @@
 package gedcomj;
 
+import java.io.*;
+import java.nio.*;
 import java.util.*;
 
 /**
@@ -11,5 +13,39 @@ public class Multimedia extends Record {
         super(gedcom, tag);
     }
 
+    /**
+     * Return the values of the FILE records, which are URIs or filenames
+     */
+    public List<String> getFiles() {
+        List<String> l = new ArrayList<String>();
+        for (Record r : getRecords()) {
+            if (r.tag().equals("FILE") && r.getValue().length() > 0) {
+                l.add(r.getValue());
+            }
+        }
+        return l;
+    }
+
+    /**
+     * If the GEDCOM was read from a GEDZIP file, open the entry for the specified
+     * FILE value, which is uncompressed as it's read. The stream must be closed.
+     * @param file the FILE value, as returned from {@link #getFiles}
+     * @return the stream, or null if the GEDCOM wasn't read from a GEDZIP file or the entry doesn't exist
+     */
+    public InputStream openFile(String file) throws IOException {
+        Gedzip gedzip = gedcom.getGedzip();
+        return gedzip == null ? null : gedzip.open(Gedzip.getEntryName(file));
+    }
+
+    /**
+     * If the GEDCOM was read from a GEDZIP file and the entry for the specified FILE value is
+     * stored without compression, as media files usually are, return it memory-mapped.
+     * @param file the FILE value, as returned from {@link #getFiles}
+     * @return the read-only buffer, or null if the entry can't be mapped, in which case use {@link #openFile}
+     */
+    public ByteBuffer mapFile(String file) throws IOException {
+        Gedzip gedzip = gedcom.getGedzip();
+        return gedzip == null ? null : gedzip.map(Gedzip.getEntryName(file));
+    }
 
 }
@@ -0,0 +1,211 @@
+package gedcomj;
+
+import java.util.*;
+
+/**
+ * Statistics collected while parsing, which can be attached with {@link GEDCOM#setStatistics}
+ * or {@link GedcomParser#setStatistics}. When no ParseStatistics is attached nothing is measured.
+ * The times are measured with {@link System#nanoTime} around each value decoded and each
+ * call to the handler, so collecting them slows the parse a little. Once a read by {@link GEDCOM}
+ * has ended nothing more is added, so records loaded later with {@link GEDCOM#OPTION_LAZY} are
+ * not counted. This class is thread-safe.
+ * <pre>
+ * ParseStatistics stats = new ParseStatistics();
+ * gedcom.setStatistics(stats);
+ * gedcom.read(path);
+ * System.out.println(stats);
+ * </pre>
+ */
+public class ParseStatistics {
+
+    private long bytes, lines, records, conc, cont, decodetime, handlertime, idtime, handleridtime, elapsed, start;
+    private int peakvalue;
+    private boolean ended;
+    private final Map<String,Long> tags = new LinkedHashMap<String,Long>();
+
+    /**
+     * Reset all the statistics to zero
+     */
+    public synchronized void reset() {
+        bytes = lines = records = conc = cont = decodetime = handlertime = idtime = handleridtime = elapsed = start = 0;
+        peakvalue = 0;
+        ended = false;
+        tags.clear();
+    }
+
+    /**
+     * Return the number of bytes read
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Return the number of lines read, including CONC and CONT lines
+     */
+    public synchronized long getLines() {
+        return lines;
+    }
+
+    /**
+     * Return the number of records read, not including CONC and CONT lines
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Return a copy of the map of tags to the number of records with that tag,
+     * in the order each tag was first seen
+     */
+    public synchronized Map<String,Long> getTagCounts() {
+        return new LinkedHashMap<String,Long>(tags);
+    }
+
+    /**
+     * Return the number of CONC lines joined to the value before them
+     */
+    public synchronized long getConcCount() {
+        return conc;
+    }
+
+    /**
+     * Return the number of CONT lines joined to the value before them
+     */
+    public synchronized long getContCount() {
+        return cont;
+    }
+
+    /**
+     * Return the length in bytes of the longest value, after CONC/CONT lines are joined
+     */
+    public synchronized int getPeakValueLength() {
+        return peakvalue;
+    }
+
+    /**
+     * Return the total time taken in nanoseconds, from the start to the end of the read
+     */
+    public synchronized long getElapsedTime() {
+        return elapsed;
+    }
+
+    /**
+     * Return the time in nanoseconds spent decoding values into Strings
+     */
+    public synchronized long getDecodeTime() {
+        return decodetime;
+    }
+
+    /**
+     * Return the time in nanoseconds spent in the {@link GedcomHandler}, not including
+     * the time in {@link #getIdTableTime}. When reading into a GEDCOM this is the time
+     * spent building the tree of Records.
+     */
+    public synchronized long getBuildTime() {
+        return handlertime - handleridtime;
+    }
+
+    /**
+     * Return the time in nanoseconds spent setting the ids of records and building
+     * the id table, which is done once all the level-0 records have been read
+     */
+    public synchronized long getIdTableTime() {
+        return idtime;
+    }
+
+    /**
+     * Return the number of bytes read per second
+     */
+    public synchronized double getBytesPerSecond() {
+        return elapsed == 0 ? 0 : bytes * 1000000000d / elapsed;
+    }
+
+    /**
+     * Return the number of lines read per second
+     */
+    public synchronized double getLinesPerSecond() {
+        return elapsed == 0 ? 0 : lines * 1000000000d / elapsed;
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Read " + bytes + " bytes, " + lines + " lines, " + records + " records in " + (elapsed / 1000000) + "ms");
+        sb.append(String.format(" (%.1f MB/s, %.0f lines/s)\n", getBytesPerSecond() / 1000000, getLinesPerSecond()));
+        sb.append("Joined " + conc + " CONC and " + cont + " CONT lines, longest value " + peakvalue + " bytes\n");
+        sb.append("Decoding values " + (decodetime / 1000000) + "ms, building tree " + (getBuildTime() / 1000000) + "ms, id table " + (idtime / 1000000) + "ms\n");
+        sb.append("Records by tag:");
+        for (Map.Entry<String,Long> e : tags.entrySet()) {
+            sb.append(" " + e.getKey() + "=" + e.getValue());
+        }
+        return sb.toString();
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Used by the parser
+
+    synchronized void start() {
+        reset();
+        start = System.nanoTime();
+    }
+
+    synchronized void end() {
+        elapsed = System.nanoTime() - start;
+        ended = true;
+    }
+
+    synchronized void addCursor(long bytes, long lines, long records, long conc, long cont, long decodetime, int peakvalue, Map<String,long[]> tags) {
+        if (ended) {
+            return;
+        }
+        this.bytes += bytes;
+        this.lines += lines;
+        this.records += records;
+        this.conc += conc;
+        this.cont += cont;
+        this.decodetime += decodetime;
+        this.peakvalue = Math.max(this.peakvalue, peakvalue);
+        for (Map.Entry<String,long[]> e : tags.entrySet()) {
+            Long l = this.tags.get(e.getKey());
+            this.tags.put(e.getKey(), (l == null ? 0 : l) + e.getValue()[0]);
+        }
+    }
+
+    /**
+     * Add the counts and times from another ParseStatistics, which is not in use by any other thread
+     */
+    synchronized void add(ParseStatistics other) {
+        if (ended) {
+            return;
+        }
+        addCursor(other.bytes, other.lines, other.records, other.conc, other.cont, other.decodetime, other.peakvalue, Collections.<String,long[]>emptyMap());
+        for (Map.Entry<String,Long> e : other.tags.entrySet()) {
+            Long l = tags.get(e.getKey());
+            tags.put(e.getKey(), (l == null ? 0 : l) + e.getValue());
+        }
+        handlertime += other.handlertime;
+        idtime += other.idtime;
+        handleridtime += other.handleridtime;
+    }
+
+    synchronized void addHandlerTime(long time) {
+        if (!ended) {
+            handlertime += time;
+        }
+    }
+
+    /**
+     * @param time the time in nanoseconds
+     * @param inhandler whether the time was spent inside a call to the handler
+     */
+    synchronized void addIdTableTime(long time, boolean inhandler) {
+        if (ended) {
+            return;
+        }
+        idtime += time;
+        if (inhandler) {
+            handleridtime += time;
+        }
+    }
+
+}
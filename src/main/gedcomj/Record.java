@@ -1,5 +1,7 @@
 package gedcomj;
 
+import java.io.*;
+import java.nio.*;
 import java.util.*;
 
 /**
@@ -12,8 +14,12 @@ public class Record {
     private final RecordList records;
     private String id, idref;
     private Record owner;
+    private RecordList list;
     private String value;
     private int line;
+    private ByteBuffer lazy;    // if not null, the unparsed bytes for this record and its descendants
+    private long srcoffset = -1;        // if not -1, the offset of this level-0 record in the file it was read from
+    private int srclength;
 
     Record(GEDCOM gedcom, String tag) {
         if (gedcom == null) {
@@ -54,6 +60,7 @@ public class Record {
             id = gedcom.nextId(id);
         }
         this.id = id;
+        changed();
     }
 
     /**
@@ -71,6 +78,7 @@ public class Record {
             throw new IllegalStateException("Already indirect");
         }
         this.idref = idref;
+        changed();
     }
 
     /**
@@ -81,10 +89,94 @@ public class Record {
         return idref;
     }
 
-    void setOwner(Record owner) {
+    /**
+     * Set the bytes this record will be parsed from when it is first accessed
+     */
+    void setLazy(ByteBuffer lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Return the bytes this record will be parsed from, or null if it has been loaded
+     */
+    ByteBuffer getLazy() {
+        return lazy;
+    }
+
+    /**
+     * Return true unless this record was read with {@link GEDCOM#OPTION_LAZY}
+     * and its value and descendants have not yet been parsed.
+     */
+    boolean isLoaded() {
+        return lazy == null;
+    }
+
+    private void load() {
+        if (lazy != null) {
+            ByteBuffer b = lazy;
+            lazy = null;
+            long srcoffset = this.srcoffset;
+            gedcom.load(this, b);
+            this.srcoffset = srcoffset;     // loading isn't a change
+        }
+    }
+
+    /**
+     * Set the bytes in the source file this level-0 record was read from
+     * @param offset the offset of the first line, or -1 if not known
+     * @param length the number of bytes up to the next level-0 record
+     */
+    void setSource(long offset, int length) {
+        this.srcoffset = offset;
+        this.srclength = length;
+    }
+
+    /**
+     * Return the offset of this level-0 record in the file it was read from, or
+     * -1 if it wasn't read from a file or it or its descendants have since changed
+     */
+    long getSourceOffset() {
+        return srcoffset;
+    }
+
+    /**
+     * Return the length of this level-0 record in the file it was read from
+     */
+    int getSourceLength() {
+        return srclength;
+    }
+
+    /**
+     * Mark the level-0 record containing this record as changed since it
+     * was read, so it can no longer be copied from the source file
+     */
+    void changed() {
+        if (gedcom.hasSource()) {
+            Record r = this;
+            while (r.owner != null) {
+                r = r.owner;
+            }
+            r.srcoffset = -1;
+        }
+    }
+
+    /**
+     * Set the list this record is in, and the record that list belongs to
+     * @param list the list, or null if this record has been removed from its list
+     * @param owner the record the list belongs to, or null if it's the list of level-0 records
+     */
+    void setOwner(RecordList list, Record owner) {
+        this.list = list;
         this.owner = owner;
     }
 
+    /**
+     * Return the list this record is in, or null
+     */
+    RecordList getList() {
+        return list;
+    }
+
     /**
      * Notify this record it is about to be removed from a parent or from the GEDCOM.
      * This method is called immediately before removal.
@@ -123,7 +215,9 @@ public class Record {
         if (this.idref != null) {
             throw new IllegalStateException("IdRef record: " + this);
         }
+        load();
         this.value = value;
+        changed();
     }
 
     /**
@@ -134,6 +228,7 @@ public class Record {
         if (idref != null) {
             return null;
         }
+        load();
         if (value == null) {
             value = "";
         }
@@ -158,6 +253,7 @@ public class Record {
         if (idref != null) {
             return gedcom.resolveIdRef(idref);
         }
+        load();
         return this;
     }
 
@@ -165,6 +261,7 @@ public class Record {
      * Return the modifiable list of sub-records for this Record, which may be empty but is never null.
      */
     public List<Record> getRecords() {
+        load();
         return records;
     }
 
@@ -182,25 +279,71 @@ public class Record {
 
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("{\"tag\":");
-        sb.append(Stringify.toString(tag));
+        try {
+            writeJSON(sb, -1);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // can't happen
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write this record and its descendants as JSON, in the same form as {@link #toString}
+     * @param out the Appendable to write to
+     * @param indent -1 to write compact JSON, or the indent level of this record to write it pretty-printed
+     */
+    void writeJSON(Appendable out, int indent) throws IOException {
+        load();
+        final String sep = indent < 0 ? ":" : ": ";
+        out.append('{');
+        newline(out, indent, 1);
+        out.append("\"tag\"").append(sep);
+        Stringify.append(tag, out);
         if (id != null) {
-            sb.append(",\"id\":");
-            sb.append(Stringify.toString(id));
+            out.append(',');
+            newline(out, indent, 1);
+            out.append("\"id\"").append(sep);
+            Stringify.append(id, out);
         }
         if (idref != null) {
-            sb.append(",\"idref\":");
-            sb.append(Stringify.toString(idref));
+            out.append(',');
+            newline(out, indent, 1);
+            out.append("\"idref\"").append(sep);
+            Stringify.append(idref, out);
         } else if (value != null && !value.isEmpty()) {
-            sb.append(",\"value\":");
-            sb.append(Stringify.toString(getValue()));
+            out.append(',');
+            newline(out, indent, 1);
+            out.append("\"value\"").append(sep);
+            Stringify.append(value, out);
         }
-        if (!getRecords().isEmpty()) {
-            sb.append(",\"records\":");
-            sb.append(Stringify.toString(getRecords()));
+        if (!records.isEmpty()) {
+            out.append(',');
+            newline(out, indent, 1);
+            out.append("\"records\"").append(sep).append('[');
+            for (int i=0;i<records.size();i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                newline(out, indent, 2);
+                records.get(i).writeJSON(out, indent < 0 ? -1 : indent + 2);
+            }
+            newline(out, indent, 1);
+            out.append(']');
+        }
+        newline(out, indent, 0);
+        out.append('}');
+    }
+
+    /**
+     * If pretty-printing, write a newline and indent
+     */
+    private static void newline(Appendable out, int indent, int add) throws IOException {
+        if (indent >= 0) {
+            out.append('\n');
+            for (int i=indent+add;i>0;i--) {
+                out.append("  ");
+            }
         }
-        sb.append("}");
-        return sb.toString();
     }
 
 }
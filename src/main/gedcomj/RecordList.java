@@ -32,23 +32,30 @@ class RecordList extends AbstractList<Record> {
         if (old == r) {
             return r;
         }
-        int oldindex = list.indexOf(r);
-        if (oldindex >= 0) {
+        final boolean moved = r.getList() == this;
+        if (moved) {
+            int oldindex = list.lastIndexOf(r);
             list.remove(oldindex);
             if (oldindex < i) {
                 i--;
             }
-        } else if (r.owner() != null) {
-            r.owner().getRecords().remove(r);
+        } else if (r.getList() != null) {
+            r.getList().remove(r);
         }
         list.set(i, r);
-        old.notifyRemoved();
-        notifyRemoved(old);
-        old.setOwner(null);
-        if (oldindex < 0) {
-            r.setOwner(owner);
-            notifyAdded(r);
-            r.notifyAdded();
+        changed();
+        final boolean notify = !gedcom.isBulk();
+        if (notify) {
+            old.notifyRemoved();
+            notifyRemoved(old);
+        }
+        old.setOwner(null, null);
+        if (!moved) {
+            r.setOwner(this, owner);
+            if (notify) {
+                notifyAdded(r);
+                r.notifyAdded();
+            }
         }
         return old;
     }
@@ -60,32 +67,66 @@ class RecordList extends AbstractList<Record> {
         if (r.gedcom != gedcom) {
             throw new IllegalArgumentException("Record from another GEDCOM");
         }
-        int oldindex = list.indexOf(r);
-        if (oldindex >= 0) {
+        if (r.getList() == this) {
+            // Already in this list, so just move it. Search from the end, as that's where most records are added
+            int oldindex = list.lastIndexOf(r);
             list.remove(oldindex);
             if (oldindex < i) {
                 i--;
             }
             list.add(i, r);
+            changed();
         } else {
-            if (r.owner() != null) {
-                r.owner().getRecords().remove(r);
+            if (r.getList() != null) {
+                r.getList().remove(r);
             }
             list.add(i, r);
-            r.setOwner(owner);
-            notifyAdded(r);
-            r.notifyAdded();
+            changed();
+            r.setOwner(this, owner);
+            if (!gedcom.isBulk()) {
+                notifyAdded(r);
+                r.notifyAdded();
+            }
         }
     }
 
     @Override public Record remove(int i) {
         Record r = list.remove(i);
-        r.notifyRemoved();
-        notifyRemoved(r);
-        r.setOwner(null);
+        changed();
+        if (!gedcom.isBulk()) {
+            r.notifyRemoved();
+            notifyRemoved(r);
+        }
+        r.setOwner(null, null);
         return r;
     }
 
+    @Override public boolean remove(Object o) {
+        if (contains(o)) {
+            remove(list.lastIndexOf(o));
+            return true;
+        }
+        return false;
+    }
+
+    @Override public boolean contains(Object o) {
+        return o instanceof Record && ((Record)o).getList() == this;
+    }
+
+    @Override public int indexOf(Object o) {
+        return contains(o) ? list.indexOf(o) : -1;
+    }
+
+    @Override public int lastIndexOf(Object o) {
+        return contains(o) ? list.lastIndexOf(o) : -1;
+    }
+
+    private void changed() {
+        if (owner != null) {
+            owner.changed();
+        }
+    }
+
     protected void notifyRemoved(Record r) {
     }
 
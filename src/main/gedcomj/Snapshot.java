@@ -0,0 +1,493 @@
+package gedcomj;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Reads and writes the binary snapshot format used by {@link GEDCOM#writeSnapshot}. It is intended
+ * for reloading a tree that has already been parsed and verified, so it is read without tokenizing,
+ * decoding charsets or parsing dates. The format is
+ * <pre>
+ * magic       0x89 'G' 'S' 'N', then a version byte
+ * strings     varint count, then for each a varint length and UTF-8 bytes
+ * records     varint count of level-0 records, then each record in turn
+ * record      varint tag, flags byte, [varint id], [varint idref], varint line number,
+ *             [varint length of the rest of the record, for level-0 records only],
+ *             [value], [date], varint count of child records, then each child record
+ * value       varint 0 then a varint length and UTF-8 bytes, or the string index plus 1
+ * date        qualifier byte, then a zigzag varint of the start and end times if present
+ * </pre>
+ * Tags, ids and idrefs are always indices into the string table, as are short values that
+ * occur more than once. The length of each level-0 record lets them be skipped, so the file
+ * can be memory-mapped and each record decoded only when it is first accessed, as for
+ * {@link GEDCOM#OPTION_LAZY}. When it is, the strings in the table are also decoded from the
+ * mapping as they are first needed.
+ */
+class Snapshot {
+
+    static final byte[] MAGIC = { (byte)0x89, 'G', 'S', 'N' };
+    private static final int VERSION = 2;
+    private static final int MAXSHARED = 32;        // the longest value to put in the string table
+    private static final int F_ID = 1, F_IDREF = 2, F_VALUE = 4, F_DATE = 8;
+    private static final int D_START = 1, D_END = 2;
+
+    /**
+     * Return true if the bytes are the start of a snapshot
+     */
+    static boolean isSnapshot(byte[] head, int len) {
+        if (len < MAGIC.length) {
+            return false;
+        }
+        for (int i=0;i<MAGIC.length;i++) {
+            if (head[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //-------------------------------------------------------------------
+    // Writing
+
+    private final byte[] buf = new byte[65536];
+    private final Map<String,Integer> strings = new HashMap<String,Integer>();
+    private OutputStream out;
+    private ByteArrayOutputStream body;
+    private int pos;
+
+    /**
+     * Write the records to the OutputStream, which is flushed but not closed
+     */
+    void write(List<Record> records, OutputStream out) throws IOException {
+        this.out = out;
+        // First pass: collect the strings for the table
+        List<String> table = new ArrayList<String>();
+        Map<String,Integer> counts = new LinkedHashMap<String,Integer>();
+        for (int i=0;i<records.size();i++) {
+            collect(records.get(i), table, counts);
+        }
+        for (Map.Entry<String,Integer> e : counts.entrySet()) {
+            if (e.getValue() > 1 && !strings.containsKey(e.getKey())) {
+                strings.put(e.getKey(), table.size());
+                table.add(e.getKey());
+            }
+        }
+        put(MAGIC, 0, MAGIC.length);
+        put(VERSION);
+        putVarint(table.size());
+        for (int i=0;i<table.size();i++) {
+            putString(table.get(i));
+        }
+        putVarint(records.size());
+        body = new ByteArrayOutputStream();
+        for (int i=0;i<records.size();i++) {
+            write(records.get(i), 0);
+        }
+        flush();
+        out.flush();
+    }
+
+    private void collect(Record r, List<String> table, Map<String,Integer> counts) {
+        add(r.tag(), table);
+        if (r.getId() != null) {
+            add(r.getId(), table);
+        }
+        if (r.getIdRef() != null) {
+            add(r.getIdRef(), table);
+        } else {
+            String value = r.getValue();
+            if (value.length() > 0 && value.length() <= MAXSHARED) {
+                Integer count = counts.get(value);
+                counts.put(value, count == null ? 1 : count + 1);
+            }
+        }
+        List<Record> l = r.getRecords();
+        for (int i=0;i<l.size();i++) {
+            collect(l.get(i), table, counts);
+        }
+    }
+
+    private void add(String s, List<String> table) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, table.size());
+            table.add(s);
+        }
+    }
+
+    private void write(Record r, int level) throws IOException {
+        String id = r.getId(), idref = r.getIdRef();
+        String value = idref == null ? r.getValue() : null;
+        GDate date = r instanceof GDate && value != null && value.length() > 0 ? (GDate)r : null;
+        int flags = (id != null ? F_ID : 0) | (idref != null ? F_IDREF : 0) | (value != null && value.length() > 0 ? F_VALUE : 0) | (date != null ? F_DATE : 0);
+        putVarint(strings.get(r.tag()));
+        put(flags);
+        if (id != null) {
+            putVarint(strings.get(id));
+        }
+        if (idref != null) {
+            putVarint(strings.get(idref));
+        }
+        putVarint(r.getLineNumber());
+        OutputStream out = this.out;
+        if (level == 0) {
+            // Write the rest to the body so its length is known
+            flush();
+            this.out = body;
+        }
+        if ((flags & F_VALUE) != 0) {
+            Integer index = value.length() <= MAXSHARED ? strings.get(value) : null;
+            if (index != null) {
+                putVarint(index + 1);
+            } else {
+                putVarint(0);
+                putString(value);
+            }
+        }
+        if (date != null) {
+            Date start = date.getStart(), end = date.getEnd();
+            put(date.getQualifier().ordinal());
+            put((start != null ? D_START : 0) | (end != null ? D_END : 0));
+            if (start != null) {
+                putVarlong(zigzag(start.getTime()));
+            }
+            if (end != null) {
+                putVarlong(zigzag(end.getTime()));
+            }
+        }
+        List<Record> l = r.getRecords();
+        putVarint(l.size());
+        for (int i=0;i<l.size();i++) {
+            write(l.get(i), level + 1);
+        }
+        if (level == 0) {
+            flush();
+            this.out = out;
+            putVarint(body.size());
+            flush();
+            body.writeTo(out);
+            body.reset();
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (pos == buf.length) {
+            flush();
+        }
+        buf[pos++] = (byte)b;
+    }
+
+    private void put(byte[] b, int off, int len) throws IOException {
+        if (pos + len > buf.length) {
+            flush();
+            if (len > buf.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+    }
+
+    private void putVarint(int v) throws IOException {
+        putVarlong(v & 0xFFFFFFFFL);
+    }
+
+    private void putVarlong(long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            put((int)(v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        put((int)v);
+    }
+
+    private void putString(String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        putVarint(b.length);
+        put(b, 0, b.length);
+    }
+
+    //-------------------------------------------------------------------
+    // Reading
+
+    private InputStream in;
+    private FileChannel channel;
+    private ByteBuffer src;
+    private ByteBuffer[] regions;
+    private long start, base;       // the position of the start in the channel, and the offset of buf[0] from the start
+    private int limit;
+    private String[] table;
+    private long[] offsets;         // if lazy, the offset of each string in the table, then of the end of the table
+    private final GDate.Qualifier[] qualifiers = GDate.Qualifier.values();
+
+    /**
+     * Read a snapshot from the InputStream, adding the level-0 records to the list
+     */
+    void read(GEDCOM gedcom, InputStream in, List<Record> out) throws IOException {
+        this.in = in;
+        read(gedcom, out);
+    }
+
+    /**
+     * Read a snapshot from the FileChannel, starting at its position, adding the level-0 records to the list.
+     * @param regions if not null, the channel mapped from its position by {@link GEDCOM#map}. Only the
+     * level-0 records are read, and their value and descendants are read from the regions by {@link #load}
+     */
+    void read(GEDCOM gedcom, FileChannel channel, ByteBuffer[] regions, List<Record> out) throws IOException {
+        this.channel = channel;
+        this.start = channel.position();
+        this.regions = regions;
+        read(gedcom, out);
+    }
+
+    private void read(GEDCOM gedcom, List<Record> out) throws IOException {
+        for (int i=0;i<MAGIC.length;i++) {
+            if (get() != (MAGIC[i] & 0xFF)) {
+                throw new IOException("Not a snapshot");
+            }
+        }
+        int version = get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        table = new String[getVarint()];
+        if (regions != null) {
+            offsets = new long[table.length + 1];
+            for (int i=0;i<table.length;i++) {
+                offsets[i] = base + pos;
+                skip(getVarint());
+            }
+            offsets[table.length] = base + pos;
+        } else {
+            for (int i=0;i<table.length;i++) {
+                table[i] = getString();
+            }
+        }
+        int count = getVarint();
+        for (int i=0;i<count;i++) {
+            read(gedcom, null, 0, out);
+        }
+    }
+
+    /**
+     * Read the value and descendants of a level-0 record read with regions
+     * @param r the level-0 record
+     * @param buf the bytes for the record
+     */
+    void load(GEDCOM gedcom, Record r, ByteBuffer buf) throws IOException {
+        this.in = null;
+        this.channel = null;
+        this.src = buf;
+        this.base = this.pos = this.limit = 0;
+        read(gedcom, r, 0, null);
+    }
+
+    /**
+     * Read a record
+     * @param target if not null, the level-0 record to read the value and descendants into
+     * @param level the level of the record
+     * @param out the list to add the record to, if target is null
+     */
+    private void read(GEDCOM gedcom, Record target, int level, List<Record> out) throws IOException {
+        final long offset = base + pos;
+        final String tag = string(getVarint());
+        final int flags = get();
+        final String id = (flags & F_ID) != 0 ? string(getVarint()) : null;
+        final String idref = (flags & F_IDREF) != 0 ? string(getVarint()) : null;
+        final int line = getVarint();
+        final long len = level == 0 ? getVarlong() : 0;
+        Record r = target;
+        if (r == null) {
+            r = gedcom.newRecord(tag, null);
+            if (id != null) {
+                r.setId(id);
+            }
+            if (idref != null) {
+                r.setIdRef(idref);
+            }
+            r.setLineNumber(line);
+            if (level == 0 && regions != null) {
+                r.setLazy(GEDCOM.slice(regions, offset, base + pos + len));
+                out.add(r);
+                skip(len);
+                return;
+            }
+        }
+        if ((flags & F_VALUE) != 0) {
+            int index = getVarint();
+            String value = index == 0 ? getString() : string(index - 1);
+            if ((flags & F_DATE) != 0 && r instanceof GDate) {
+                GDate.Qualifier qualifier = qualifiers[get()];
+                int mask = get();
+                Date start = (mask & D_START) != 0 ? new Date(unzigzag(getVarlong())) : null;
+                Date end = (mask & D_END) != 0 ? new Date(unzigzag(getVarlong())) : null;
+                ((GDate)r).setValue(value, qualifier, start, end);
+            } else {
+                r.setValue(value);
+            }
+        }
+        if (target == null) {
+            out.add(r);
+        }
+        int count = getVarint();
+        if (count > 0) {
+            List<Record> l = r.getRecords();
+            for (int i=0;i<count;i++) {
+                read(gedcom, null, level + 1, l);
+            }
+        }
+    }
+
+    /**
+     * Return the specified string from the table, decoding it from the mapping if it hasn't been already
+     */
+    private String string(int i) throws IOException {
+        String s = table[i];
+        if (s == null) {
+            ByteBuffer b = GEDCOM.slice(regions, offsets[i], offsets[i + 1]);
+            int len = 0;
+            for (int shift=0;;shift+=7) {
+                if (shift > 28 || !b.hasRemaining()) {
+                    throw new IOException("Invalid snapshot");
+                }
+                int v = b.get();
+                len |= (v & 0x7F) << shift;
+                if ((v & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (len != b.remaining()) {
+                throw new IOException("Invalid snapshot");
+            }
+            byte[] bytes = new byte[len];
+            b.get(bytes);
+            table[i] = s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Read more bytes into the buffer, returning false at EOF
+     */
+    private boolean fill() throws IOException {
+        base += limit;
+        pos = limit = 0;
+        int n;
+        if (in != null) {
+            n = in.read(buf, 0, buf.length);
+        } else if (channel != null) {
+            n = channel.read(ByteBuffer.wrap(buf), start + base);
+        } else {
+            n = Math.min(buf.length, src.remaining());
+            src.get(buf, 0, n);
+        }
+        if (n <= 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    /**
+     * Skip over the specified number of bytes
+     */
+    private void skip(long n) throws IOException {
+        if (n <= limit - pos) {
+            pos += n;
+            return;
+        }
+        n -= limit - pos;
+        base += limit + n;
+        pos = limit = 0;
+        if (in != null) {
+            while (n > 0) {
+                long m = in.skip(n);
+                if (m <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException();
+                    }
+                    m = 1;
+                }
+                n -= m;
+            }
+        } else if (channel == null) {
+            src.position(src.position() + (int)n);
+        }
+    }
+
+    private int get() throws IOException {
+        if (pos == limit && !fill()) {
+            throw new EOFException();
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private int getVarint() throws IOException {
+        long v = getVarlong();
+        if (v < 0 || v > Integer.MAX_VALUE) {
+            throw new IOException("Invalid snapshot");
+        }
+        return (int)v;
+    }
+
+    private long getVarlong() throws IOException {
+        long v = 0;
+        for (int shift=0;shift<64;shift+=7) {
+            int b = get();
+            v |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Invalid snapshot");
+    }
+
+    private String getString() throws IOException {
+        final int len = getVarint();
+        if (limit - pos < len) {
+            byte[] b = new byte[len];
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, 0, n);
+            pos += n;
+            while (n < len) {
+                if (!fill()) {
+                    throw new EOFException();
+                }
+                int m = Math.min(len - n, limit);
+                System.arraycopy(buf, 0, b, n, m);
+                pos = m;
+                n += m;
+            }
+            return new String(b, StandardCharsets.UTF_8);
+        }
+        final byte[] buf = this.buf;
+        boolean ascii = true;
+        for (int i=pos;i<pos+len;i++) {
+            if (buf[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        String s = new String(buf, pos, len, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+
+}
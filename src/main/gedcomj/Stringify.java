@@ -1,5 +1,6 @@
 package gedcomj;
 
+import java.io.*;
 import java.nio.*;
 import java.util.*;
 
@@ -129,6 +130,45 @@ class Stringify {
         return b;
     }
 
+    /**
+     * Append a CharSequence as a quoted JSON string
+     */
+    static void append(CharSequence s, Appendable out) throws IOException {
+        out.append('"');
+        int start = 0;
+        final int len = s.length();
+        for (int i=0;i<len;i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && (c < 0x7F || c > 0x9F)) {
+                continue;
+            }
+            out.append(s, start, i);
+            start = i + 1;
+            if (c == '\n') {
+                out.append("\\n");
+            } else if (c == '\r') {
+                out.append("\\r");
+            } else if (c == '\t') {
+                out.append("\\t");
+            } else if (c == '"') {
+                out.append("\\\"");
+            } else if (c == '\\') {
+                out.append("\\\\");
+            } else if (Character.isISOControl(c)) {     // 0x00-0x1F, 0x7F-0x9F
+                String t = Integer.toHexString(c);
+                out.append("\\u");
+                for (int j=t.length();j<4;j++) {
+                    out.append('0');
+                }
+                out.append(t);
+            } else {
+                out.append(c);
+            }
+        }
+        out.append(s, start, len);
+        out.append('"');
+    }
+
     /**
      * A quick single-method JSON writer, intended to write Maps/Lists/Strings/Numbers/Booleans
      */
@@ -136,33 +176,12 @@ class Stringify {
         if (o == null) {
             return null;
         } else if (o instanceof CharSequence) {
-            CharSequence s = (CharSequence)o;
             StringBuilder sb = new StringBuilder();
-            sb.append('"');
-            for (int i=0;i<s.length();i++) {
-                char c = s.charAt(i);
-                if (c == '\n') {
-                    sb.append("\\n");
-                } else if (c == '\r') {
-                    sb.append("\\r");
-                } else if (c == '\t') {
-                    sb.append("\\t");
-                } else if (c == '"') {
-                    sb.append("\\\"");
-                } else if (c == '\\') {
-                    sb.append("\\\\");
-                } else if (Character.isISOControl(c)) {     // 0x00-0x1F, 0x80-0x9F
-                    String t = Integer.toHexString(c);
-                    sb.append("\\u");
-                    for (int j=t.length();j<4;j++) {
-                        sb.append('0');
-                    }
-                    sb.append(t);
-                } else {
-                    sb.append(c);
-                }
+            try {
+                append((CharSequence)o, sb);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);     // can't happen
             }
-            sb.append('"');
             return sb.toString();
         } else if (o instanceof Map) {
             Map<?,?> m = (Map<?,?>)o;